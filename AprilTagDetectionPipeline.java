@@ -23,6 +23,7 @@ package org.firstinspires.ftc.teamcode;
 
 import org.firstinspires.ftc.robotcore.external.Telemetry;
 import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfDouble;
@@ -30,15 +31,21 @@ import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.MatOfPoint3f;
 import org.opencv.core.Point;
 import org.opencv.core.Point3;
+import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
+import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 import org.openftc.apriltag.AprilTagDetection;
 import org.openftc.apriltag.AprilTagDetectorJNI;
+import org.openftc.apriltag.AprilTagPose;
 import org.openftc.easyopencv.OpenCvPipeline;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
 
-public class AprilTagDetectionPipeline extends OpenCvPipeline
+public class AprilTagDetectionPipeline extends OpenCvPipeline implements AutoCloseable
 {
     // STATIC CONSTANTS
 
@@ -51,98 +58,927 @@ public class AprilTagDetectionPipeline extends OpenCvPipeline
 
     // Lens intrinsics
     // UNITS ARE PIXELS
-    // NOTE: this calibration is for the C920 webcam at 800x448.
-    // You will need to do your own calibration for other configurations!
-    public static double fx = 578.272;
-    public static double fy = 578.272;
-    public static double cx = 402.145;
-    public static double cy = 221.506;
+    // NOTE: this calibration is for the C920 webcam at 800x448, and is registered
+    // as the DEFAULT_CAMERA profile when this class loads. It gets scaled automatically
+    // for other 16:9 resolutions of the same camera, but you will need to do your own
+    // calibration (and register it with CameraIntrinsics) for other configurations!
+    // These are final since they're only read once, when they're registered; to use
+    // a different calibration, register it rather than changing these.
+    public static final double FX = 578.272;
+    public static final double FY = 578.272;
+    public static final double CX = 402.145;
+    public static final double CY = 221.506;
+
+    public static final String DEFAULT_CAMERA = "C920";
+
+    static
+    {
+        // Don't clobber a calibration the user registered before this class loaded
+        CameraIntrinsics.registerIfAbsent(new CameraIntrinsics(DEFAULT_CAMERA, 800, 448, FX, FY, CX, CY));
+    }
 
     // UNITS ARE METERS
     public static double TAG_SIZE = 0.166;
 
+    // ROI tracking tunables
+    // How far to grow each tracked tag's bounding box, as a fraction of its largest side
+    public static double ROI_PADDING = 0.5;
+    // Force a full-frame search at least this often, even if every track is still alive
+    public static int ROI_FULL_SEARCH_INTERVAL = 10;
+
+    // Adaptive decimation tunables
+    // The decimation values the controller is allowed to step between
+    public static float[] DECIMATION_LEVELS = {1.0f, 1.5f, 2.0f, 3.0f, 4.0f};
+    // Smallest tag side length, in decimated pixels, we trust the detector to still find
+    public static double MIN_DECIMATED_TAG_SIZE_PX = 10;
+    // Fractional band around the target detector time inside which we leave decimation alone
+    public static double DECIMATION_HYSTERESIS = 0.2;
+    // Frames to wait after changing decimation before we consider changing it again
+    public static int DECIMATION_HOLD_FRAMES = 15;
+    // Weight given to each new detector time sample in the running average
+    public static double DETECTOR_TIME_SMOOTHING = 0.2;
+    // While no tags are in view, decimation is held at or below this, so that a distant tag
+    // coming into view can still be picked up, however slow the detector is
+    public static float MAX_SEARCH_DECIMATION = 2.0f;
+
+    // Parallel detection tunables
+    // How many tiles to split the frame into, across and down, for a parallel full-frame search
+    public static int TILE_COLUMNS = 2;
+    public static int TILE_ROWS = 2;
+    // How far each tile extends into its neighbours, as a fraction of the tile size. A tag
+    // straddling a tile boundary is only found if it fits entirely inside one tile.
+    public static double TILE_OVERLAP = 0.3;
+    // Two detections of the same ID whose corners are on average closer than this (in pixels)
+    // are assumed to be the same tag found in two overlapping tiles
+    public static double DUPLICATE_CORNER_DISTANCE_PX = 8;
+
+    // Skip-frame prediction tunables
+    // Run the detector at least once every this many frames
+    public static int PREDICTION_DETECT_INTERVAL = 3;
+    // Never extrapolate further than this past the last real detection
+    public static double MAX_PREDICTION_MS = 150;
+    // Mean per-pixel change (0-255) in a thumbnail of the frame that counts as large motion
+    public static double MOTION_THRESHOLD = 12;
+    // Alpha-beta filter gains for the pose and its rate of change
+    public static double PREDICTION_ALPHA = 0.6;
+    public static double PREDICTION_BETA = 0.2;
+
+    static final Size MOTION_THUMBNAIL_SIZE = new Size(32, 18);
+
+    static final float DEFAULT_DECIMATION = 3;
+    static final int DEFAULT_DETECTOR_THREADS = 3;
+
+    // Telemetry is only shown for this many tags at once
+    static final int MAX_TELEMETRY_TAGS = 6;
+
     // instance variables
 
+    private AprilTagDetectorPool.Handle detector;
     private long nativeApriltagPtr;
+
+    // Held for the whole of init(), processFrame() and close(), so the native contexts
+    // can never go back to the pool (and on to another pipeline) mid-frame
+    private final Object lifecycleSync = new Object();
+    private boolean closed = false;
+    private final int detectorThreads;
     private Mat grey = new Mat();
     private ArrayList<AprilTagDetection> detections = new ArrayList<>();
 
     private ArrayList<AprilTagDetection> detectionsUpdate = new ArrayList<>();
     private final Object detectionsUpdateSync = new Object();
 
-    Mat cameraMatrix;
+    // Published with a single reference swap, so readers never block the vision thread
+    private final AtomicReference<AprilTagDetectionSnapshot> latestSnapshot = new AtomicReference<>(AprilTagDetectionSnapshot.EMPTY);
+    private long frameSequence = 0;
+
+    Mat cameraMatrix = new Mat(3,3, CvType.CV_32FC1);
+
+    // The intrinsics for the frames we're actually being fed, and the scale at
+    // which we run the detector relative to those frames
+    private final String cameraName;
+    private CameraIntrinsics intrinsics;
+    private int intrinsicsGeneration;
+    private volatile double detectionScale = 1;
+    private Mat scaledGrey = new Mat();
+    private Mat scaledRoiGrey = new Mat();
+
+    static final Size SCALE_BY_FACTOR = new Size();
 
     double tagsizeX = TAG_SIZE;
     double tagsizeY = TAG_SIZE;
 
-    private float decimation;
+    private float decimation = DEFAULT_DECIMATION;
     private boolean needToSetDecimation;
     private final Object decimationSync = new Object();
 
+    private volatile boolean roiTracking = false;
+    private int framesSinceFullSearch = 0;
+    private ArrayList<Rect> trackingRois = new ArrayList<>();
+    private Mat roiGrey = new Mat();
+
+    // Each parallel worker needs its own native context and buffer, since a single
+    // detector context can't run on more than one frame at a time
+    private volatile boolean parallelDetection = false;
+    private ArrayList<AprilTagDetectorPool.Handle> workerDetectors = new ArrayList<>();
+    private ArrayList<Mat> workerGrey = new ArrayList<>();
+    private ArrayList<Mat> workerScaledGrey = new ArrayList<>();
+    private ArrayList<Rect> tiles = new ArrayList<>();
+    private ArrayList<ForkJoinTask<ArrayList<AprilTagDetection>>> workerTasks = new ArrayList<>();
+
+    private volatile boolean adaptiveDecimation = false;
+    private volatile double targetDetectorTimeMs;
+    private boolean decimationControllerRunning = false;
+    private int decimationLevel;
+    private int framesSinceDecimationChange;
+    private double detectorTimeAvgMs;
+
+    private volatile boolean skipFramePrediction = false;
+    private ArrayList<TagPoseFilter> tagFilters = new ArrayList<>();
+    private int framesSinceDetectorRun = 0;
+    private long lastDetectorRunNanos = 0;
+    private Mat motionThumbnail = new Mat();
+    private Mat detectorThumbnail = new Mat();
+    private Mat thumbnailDiff = new Mat();
+
+    // Pose & overlay buffers. These are allocated once and reused for every tag on every
+    // frame, so drawing the overlay doesn't churn (or leak) any native memory.
+    private volatile boolean useIppeSquarePose = false;
+    private final Pose pose = new Pose();
+    private final Mat rotationMatrix = new Mat(3, 3, CvType.CV_64FC1);
+    private final double[] rotationData = new double[9];
+    private final MatOfDouble noDistortion = new MatOfDouble();
+    private final MatOfPoint3f tagCorners3d = new MatOfPoint3f();
+    private final MatOfPoint2f tagCorners2d = new MatOfPoint2f();
+    private final float[] tagCornerData = new float[4*2];
+    private final MatOfPoint3f overlayPoints3d = new MatOfPoint3f();
+    private final MatOfPoint2f overlayPoints2d = new MatOfPoint2f();
+    private final float[] overlayPointData = new float[OVERLAY_POINT_COUNT*2];
+    private final Point[] overlayPoints = new Point[OVERLAY_POINT_COUNT];
+
+    // The overlay is 4 axis marker points followed by 8 cube corners
+    static final int OVERLAY_POINT_COUNT = 12;
+    static final int AXIS_THICKNESS = 6;
+    static final int CUBE_THICKNESS = 5;
+
     Telemetry telemetry;
+    TelemetryPublisher.Section telemetrySection;
+    TelemetryPublisher.Field[][] tagTelemetry = new TelemetryPublisher.Field[MAX_TELEMETRY_TAGS][];
+
+    // Times each step of processFrame, when StageTimer.enabled is set
+    final StageTimer timer = new StageTimer("AprilTagDetectionPipeline");
+    final int setupTimerStage = timer.addStage("setup");
+    final int motionCheckTimerStage = timer.addStage("motionCheck");
+    final int detectTimerStage = timer.addStage("detect");
+    final int trackTimerStage = timer.addStage("track");
+    final int predictTimerStage = timer.addStage("predict");
+    final int annotateTimerStage = timer.addStage("annotate");
+    final int telemetryTimerStage = timer.addStage("telemetry");
 
     public AprilTagDetectionPipeline(Telemetry telemetry) {
+        this(telemetry, DEFAULT_DETECTOR_THREADS);
+    }
+
+    public AprilTagDetectionPipeline(Telemetry telemetry, int detectorThreads) {
+        this(telemetry, detectorThreads, DEFAULT_CAMERA);
+    }
+
+    /**
+     * @param telemetry the telemetry to report detections to
+     * @param detectorThreads how many threads the native detector should use
+     * @param cameraName the name the camera's intrinsics were registered under with {@link CameraIntrinsics}
+     */
+    public AprilTagDetectionPipeline(Telemetry telemetry, int detectorThreads, String cameraName) {
         this.telemetry = telemetry;
-        constructMatrix();
+        this.detectorThreads = detectorThreads;
+        this.cameraName = cameraName;
+        constructOverlayPoints();
+        constructTelemetry();
+        timer.publishTo(telemetry);
+    }
+
+    public StageTimer getStageTimer()
+    {
+        return timer;
     }
 
     @Override
     public void init(Mat frame)
     {
-        // Allocate a native context object. See the corresponding deletion in the finalizer
-        nativeApriltagPtr = AprilTagDetectorJNI.createApriltagDetector(AprilTagDetectorJNI.TagFamily.TAG_36h11.string, 3, 3);
+        synchronized (lifecycleSync)
+        {
+            if(closed)
+            {
+                return;
+            }
+
+            // Grab a native context object, warm from the pool if one is available.
+            // See the corresponding hand-back in close()
+            float initialDecimation;
+            synchronized (decimationSync)
+            {
+                initialDecimation = decimation;
+                needToSetDecimation = false;
+            }
+
+            detector = AprilTagDetectorPool.acquire(AprilTagDetectorJNI.TagFamily.TAG_36h11, initialDecimation, detectorThreads);
+            nativeApriltagPtr = detector.getPtr();
+        }
     }
 
+    /**
+     * Hand the native detector back to the pool and free our native buffers. Call this
+     * when the OpMode stops, so that native memory doesn't pile up waiting on the GC.
+     * If a frame is being processed, this waits for it to finish; every frame after
+     * this is passed straight through.
+     */
     @Override
-    public void finalize()
+    public void close()
+    {
+        synchronized (lifecycleSync)
+        {
+            closed = true;
+            releaseNativeResources();
+        }
+    }
+
+    private void releaseNativeResources()
     {
-        // Delete the native context we created in the init() function
-        AprilTagDetectorJNI.releaseApriltagDetector(nativeApriltagPtr);
+        if(detector != null)
+        {
+            detector.close();
+            detector = null;
+            nativeApriltagPtr = 0;
+        }
+
+        for(AprilTagDetectorPool.Handle workerDetector : workerDetectors)
+        {
+            workerDetector.close();
+        }
+        workerDetectors.clear();
+
+        for(Mat buf : workerGrey)
+        {
+            buf.release();
+        }
+        workerGrey.clear();
+
+        for(Mat buf : workerScaledGrey)
+        {
+            buf.release();
+        }
+        workerScaledGrey.clear();
+
+        // Free the native memory behind our reusable buffers
+        grey.release();
+        roiGrey.release();
+        scaledGrey.release();
+        scaledRoiGrey.release();
+        motionThumbnail.release();
+        detectorThumbnail.release();
+        thumbnailDiff.release();
+        cameraMatrix.release();
+        pose.rvec.release();
+        pose.tvec.release();
+        rotationMatrix.release();
+        noDistortion.release();
+        tagCorners3d.release();
+        tagCorners2d.release();
+        overlayPoints3d.release();
+        overlayPoints2d.release();
     }
 
     @Override
     public Mat processFrame(Mat input)
     {
-        // Convert to greyscale
-        Imgproc.cvtColor(input, grey, Imgproc.COLOR_RGBA2GRAY);
+        synchronized (lifecycleSync)
+        {
+            if(closed || detector == null)
+            {
+                return input;
+            }
+
+            return processFrameOpen(input);
+        }
+    }
+
+    private Mat processFrameOpen(Mat input)
+    {
+        timer.beginFrame();
 
         synchronized (decimationSync)
         {
             if(needToSetDecimation)
             {
-                AprilTagDetectorJNI.setApriltagDetectorDecimation(nativeApriltagPtr, decimation);
+                detector.setDecimation(decimation);
+
+                for(AprilTagDetectorPool.Handle workerDetector : workerDetectors)
+                {
+                    workerDetector.setDecimation(decimation);
+                }
                 needToSetDecimation = false;
             }
         }
 
-        // Run AprilTag
-        detections = AprilTagDetectorJNI.runAprilTagDetectorSimple(nativeApriltagPtr, grey, TAG_SIZE, fx, fy, cx, cy);
+        long captureTime = System.nanoTime();
+
+        updateIntrinsics(input.cols(), input.rows());
+        timer.lap(setupTimerStage);
+
+        if(!skipFramePrediction)
+        {
+            tagFilters.clear();
+            runDetector(input);
+            timer.lap(detectTimerStage);
+            latestSnapshot.set(AprilTagDetectionSnapshot.fromDetections(++frameSequence, captureTime, detections));
+            annotateDetections(input);
+            timer.lap(annotateTimerStage);
+        }
+        else
+        {
+            boolean runDetector = shouldRunDetector(input, captureTime);
+            timer.lap(motionCheckTimerStage);
+
+            if(runDetector)
+            {
+                runDetector(input);
+                timer.lap(detectTimerStage);
+                updateTagFilters(captureTime);
+                timer.lap(trackTimerStage);
+                latestSnapshot.set(AprilTagDetectionSnapshot.fromDetections(++frameSequence, captureTime, detections));
+                annotateDetections(input);
+                timer.lap(annotateTimerStage);
+            }
+            else
+            {
+                // Skip the detector this frame, and publish where we expect each tag to be instead
+                for(TagPoseFilter filter : tagFilters)
+                {
+                    filter.predict(captureTime);
+                }
+
+                timer.lap(predictTimerStage);
+                latestSnapshot.set(AprilTagDetectionSnapshot.fromPredictions(++frameSequence, captureTime, tagFilters));
+                annotatePredictions(input);
+                timer.lap(annotateTimerStage);
+            }
+        }
+
+        telemetrySection.commit();
+        timer.lap(telemetryTimerStage);
+        timer.endFrame();
+
+        return input;
+    }
+
+    void runDetector(Mat input)
+    {
+        long detectStartTime = System.nanoTime();
+
+        // Run AprilTag, either only around the tags we saw last frame or over the whole thing
+        if(roiTracking && !detections.isEmpty() && framesSinceFullSearch < ROI_FULL_SEARCH_INTERVAL)
+        {
+            ArrayList<AprilTagDetection> tracked = detectInTrackingRois(input);
+
+            // If any track got lost, the tag may have moved outside its ROI, so go look
+            // everywhere rather than publishing a partial result. This goes by ID rather than
+            // by count, since one tag can turn up in two overlapping ROIs while another is lost.
+            if(!containsAllIds(tracked, detections))
+            {
+                detections = detectFullFrame(input);
+            }
+            else
+            {
+                detections = tracked;
+                framesSinceFullSearch++;
+            }
+        }
+        else
+        {
+            detections = detectFullFrame(input);
+        }
+
+        if(adaptiveDecimation)
+        {
+            updateAdaptiveDecimation((System.nanoTime() - detectStartTime) / 1e6);
+        }
+        else
+        {
+            decimationControllerRunning = false;
+        }
 
         synchronized (detectionsUpdateSync)
         {
             detectionsUpdate = detections;
         }
+    }
+
+    /*
+     * Whether every tag ID in 'expected' also appears in 'found'. There are only ever a
+     * handful of tags, so a nested loop beats building a set every frame.
+     */
+    static boolean containsAllIds(ArrayList<AprilTagDetection> found, ArrayList<AprilTagDetection> expected)
+    {
+        for(int i = 0; i < expected.size(); i++)
+        {
+            int id = expected.get(i).id;
+            boolean present = false;
+
+            for(int j = 0; j < found.size() && !present; j++)
+            {
+                present = found.get(j).id == id;
+            }
+
+            if(!present)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    void annotateDetections(Mat input)
+    {
+        // For fun, use OpenCV to draw 6DOF markers on the image. We re-use AprilTag's pose
+        // unless we've been asked to re-solve it with OpenCV.
+        for(int i = 0; i < detections.size(); i++)
+        {
+            AprilTagDetection detection = detections.get(i);
+
+            if(useIppeSquarePose)
+            {
+                poseFromTrapezoid(detection.corners, cameraMatrix, pose);
+            }
+            else
+            {
+                poseFromAprilTagPose(detection.pose, pose);
+            }
+
+            drawOverlay(input, pose, cameraMatrix);
+
+            setTagTelemetry(i, detection.id, detection.pose.x, detection.pose.y, detection.pose.z,
+                    detection.pose.yaw, detection.pose.pitch, detection.pose.roll);
+        }
+
+        hideTagTelemetryFrom(detections.size());
+    }
+
+    void annotatePredictions(Mat input)
+    {
+        for(int i = 0; i < tagFilters.size(); i++)
+        {
+            double[] predicted = tagFilters.get(i).predicted;
+
+            poseFromEulerAngles(
+                    predicted[TagPoseFilter.X], predicted[TagPoseFilter.Y], predicted[TagPoseFilter.Z],
+                    predicted[TagPoseFilter.YAW], predicted[TagPoseFilter.PITCH], predicted[TagPoseFilter.ROLL], pose);
+
+            drawOverlay(input, pose, cameraMatrix);
+
+            setTagTelemetry(i, tagFilters.get(i).id,
+                    predicted[TagPoseFilter.X], predicted[TagPoseFilter.Y], predicted[TagPoseFilter.Z],
+                    predicted[TagPoseFilter.YAW], predicted[TagPoseFilter.PITCH], predicted[TagPoseFilter.ROLL]);
+        }
+
+        hideTagTelemetryFrom(tagFilters.size());
+    }
+
+    void setTagTelemetry(int index, int id, double x, double y, double z, double yaw, double pitch, double roll)
+    {
+        if(index < MAX_TELEMETRY_TAGS)
+        {
+            TelemetryPublisher.Field[] fields = tagTelemetry[index];
+            fields[0].set(id);
+            fields[1].set(x*FEET_PER_METER);
+            fields[2].set(y*FEET_PER_METER);
+            fields[3].set(z*FEET_PER_METER);
+            fields[4].set(Math.toDegrees(yaw));
+            fields[5].set(Math.toDegrees(pitch));
+            fields[6].set(Math.toDegrees(roll));
+        }
+    }
+
+    void hideTagTelemetryFrom(int index)
+    {
+        // Hide the telemetry for any tags that have since gone out of view
+        for(int i = index; i < MAX_TELEMETRY_TAGS; i++)
+        {
+            for(TelemetryPublisher.Field field : tagTelemetry[i])
+            {
+                field.hide();
+            }
+        }
+    }
+
+    /**
+     * Enable or disable skip-frame prediction. When enabled, the detector only runs every
+     * {@link #PREDICTION_DETECT_INTERVAL} frames, or sooner if the image changes a lot. On the
+     * frames in between, each tag's pose is extrapolated by an alpha-beta filter and published
+     * with {@link AprilTagDetectionSnapshot.Tag#predicted} set.
+     *
+     * @param enabled whether to predict poses between detector runs
+     */
+    public void setSkipFramePrediction(boolean enabled)
+    {
+        skipFramePrediction = enabled;
+    }
+
+    boolean shouldRunDetector(Mat input, long nowNanos)
+    {
+        framesSinceDetectorRun++;
+
+        // A heavily shrunk copy of the frame is plenty to tell whether the camera (or
+        // the tags) moved a lot since the detector last ran
+        Imgproc.resize(input, motionThumbnail, MOTION_THUMBNAIL_SIZE, 0, 0, Imgproc.INTER_AREA);
+
+        boolean run = tagFilters.isEmpty()
+                || framesSinceDetectorRun >= PREDICTION_DETECT_INTERVAL
+                || (nowNanos - lastDetectorRunNanos) / 1e6 > MAX_PREDICTION_MS
+                || detectorThumbnail.empty();
+
+        if(!run)
+        {
+            Core.absdiff(motionThumbnail, detectorThumbnail, thumbnailDiff);
+            Scalar meanDiff = Core.mean(thumbnailDiff);
+            run = (meanDiff.val[0] + meanDiff.val[1] + meanDiff.val[2]) / 3 > MOTION_THRESHOLD;
+        }
+
+        if(run)
+        {
+            framesSinceDetectorRun = 0;
+            lastDetectorRunNanos = nowNanos;
+            motionThumbnail.copyTo(detectorThumbnail);
+        }
+
+        return run;
+    }
+
+    void updateTagFilters(long nowNanos)
+    {
+        // Anything the detector didn't see this time around is dropped rather than
+        // extrapolated; we'd have nothing to correct the prediction with
+        for(int i = tagFilters.size() - 1; i >= 0; i--)
+        {
+            if(findDetection(tagFilters.get(i).id) == null)
+            {
+                tagFilters.remove(i);
+            }
+        }
 
-        // For fun, use OpenCV to draw 6DOF markers on the image. We actually recompute the pose using
-        // OpenCV because I haven't yet figured out how to re-use AprilTag's pose in OpenCV.
         for(AprilTagDetection detection : detections)
         {
-            Pose pose = poseFromTrapezoid(detection.corners, cameraMatrix, tagsizeX, tagsizeY);
-            drawAxisMarker(input, tagsizeY/2.0, 6, pose.rvec, pose.tvec, cameraMatrix);
-            draw3dCubeMarker(input, tagsizeX, tagsizeX, tagsizeY, 5, pose.rvec, pose.tvec, cameraMatrix);
+            TagPoseFilter filter = findFilter(detection.id);
 
-            telemetry.addLine(String.format("\nDetected tag ID=%d", detection.id));
-            telemetry.addLine(String.format("Translation X: %.2f feet", detection.pose.x*FEET_PER_METER));
-            telemetry.addLine(String.format("Translation Y: %.2f feet", detection.pose.y*FEET_PER_METER));
-            telemetry.addLine(String.format("Translation Z: %.2f feet", detection.pose.z*FEET_PER_METER));
-            telemetry.addLine(String.format("Rotation Yaw: %.2f degrees", Math.toDegrees(detection.pose.yaw)));
-            telemetry.addLine(String.format("Rotation Pitch: %.2f degrees", Math.toDegrees(detection.pose.pitch)));
-            telemetry.addLine(String.format("Rotation Roll: %.2f degrees", Math.toDegrees(detection.pose.roll)));
+            if(filter == null)
+            {
+                tagFilters.add(new TagPoseFilter(detection, nowNanos));
+            }
+            else if(filter.lastMeasurementNanos != nowNanos)
+            {
+                filter.measure(detection, nowNanos, PREDICTION_ALPHA, PREDICTION_BETA);
+            }
         }
+    }
 
-        telemetry.update();
+    AprilTagDetection findDetection(int id)
+    {
+        for(AprilTagDetection detection : detections)
+        {
+            if(detection.id == id)
+            {
+                return detection;
+            }
+        }
 
-        return input;
+        return null;
+    }
+
+    TagPoseFilter findFilter(int id)
+    {
+        for(TagPoseFilter filter : tagFilters)
+        {
+            if(filter.id == id)
+            {
+                return filter;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Enable or disable ROI tracking. When enabled, frames following a successful detection
+     * only search padded regions around the previously detected tags, with a full-frame search
+     * every {@link #ROI_FULL_SEARCH_INTERVAL} frames or whenever a track is lost.
+     *
+     * @param enabled whether to use ROI tracking
+     */
+    public void setRoiTracking(boolean enabled)
+    {
+        roiTracking = enabled;
+    }
+
+    /**
+     * Enable or disable parallel detection. When enabled, full-frame searches are split into
+     * overlapping tiles, and tracking passes run each ROI, all concurrently on the shared
+     * {@link VisionWorkerPool}. Each worker runs a single-threaded detector of its own.
+     *
+     * @param enabled whether to detect in parallel
+     */
+    public void setParallelDetection(boolean enabled)
+    {
+        parallelDetection = enabled;
+    }
+
+    ArrayList<AprilTagDetection> detectFullFrame(Mat input)
+    {
+        framesSinceFullSearch = 0;
+
+        if(parallelDetection)
+        {
+            computeTiles(input.cols(), input.rows());
+            return deduplicate(detectInRegionsParallel(input, tiles));
+        }
+
+        // Convert to greyscale
+        Imgproc.cvtColor(input, grey, Imgproc.COLOR_RGBA2GRAY);
+
+        return detectInGrey(nativeApriltagPtr, grey, scaledGrey, 0, 0);
+    }
+
+    ArrayList<AprilTagDetection> detectInTrackingRois(Mat input)
+    {
+        computeTrackingRois(input.cols(), input.rows());
+
+        if(parallelDetection && trackingRois.size() > 1)
+        {
+            return detectInRegionsParallel(input, trackingRois);
+        }
+
+        ArrayList<AprilTagDetection> tracked = new ArrayList<>();
+
+        for(Rect roi : trackingRois)
+        {
+            tracked.addAll(detectInRegion(input, roi, nativeApriltagPtr, roiGrey, scaledRoiGrey));
+        }
+
+        return tracked;
+    }
+
+    /*
+     * Runs the detector over a single region of the input, and returns
+     * the detections in full-frame coordinates
+     */
+    ArrayList<AprilTagDetection> detectInRegion(Mat input, Rect region, long detectorPtr, Mat greyBuf, Mat scaledBuf)
+    {
+        // The detector wants a continuous buffer, so we convert straight from the input
+        // submat into our own buffer rather than taking a submat of 'grey'
+        Mat inputRegion = input.submat(region);
+        Imgproc.cvtColor(inputRegion, greyBuf, Imgproc.COLOR_RGBA2GRAY);
+        inputRegion.release();
+
+        return detectInGrey(detectorPtr, greyBuf, scaledBuf, region.x, region.y);
+    }
+
+    /*
+     * Runs the detector over a greyscale buffer whose top-left corner sits at (offsetX, offsetY)
+     * in the full frame, downscaling it first if we've been asked to, and returns the detections
+     * in full-frame coordinates
+     */
+    ArrayList<AprilTagDetection> detectInGrey(long detectorPtr, Mat greyBuf, Mat scaledBuf, int offsetX, int offsetY)
+    {
+        double scale = detectionScale;
+        Mat detectOn = greyBuf;
+
+        if(scale != 1)
+        {
+            Imgproc.resize(greyBuf, scaledBuf, SCALE_BY_FACTOR, scale, scale, Imgproc.INTER_AREA);
+            detectOn = scaledBuf;
+        }
+
+        // Shifting the principal point into buffer coordinates, and scaling the intrinsics to
+        // match the buffer, keeps the pose estimate identical to a full-frame detection
+        CameraIntrinsics k = intrinsics;
+        ArrayList<AprilTagDetection> bufDetections = AprilTagDetectorJNI.runAprilTagDetectorSimple(
+                detectorPtr, detectOn, TAG_SIZE,
+                k.fx * scale, k.fy * scale,
+                (k.cx - offsetX + 0.5) * scale - 0.5,
+                (k.cy - offsetY + 0.5) * scale - 0.5);
+
+        for(AprilTagDetection detection : bufDetections)
+        {
+            // Map the corners back into full-frame coordinates
+            detection.center.x = (detection.center.x + 0.5) / scale - 0.5 + offsetX;
+            detection.center.y = (detection.center.y + 0.5) / scale - 0.5 + offsetY;
+
+            for(Point corner : detection.corners)
+            {
+                corner.x = (corner.x + 0.5) / scale - 0.5 + offsetX;
+                corner.y = (corner.y + 0.5) / scale - 0.5 + offsetY;
+            }
+        }
+
+        return bufDetections;
+    }
+
+    /**
+     * Run the detector on a downscaled copy of each frame (or ROI). Unlike decimation, this
+     * also shrinks the buffer the detector's edge refinement works on. The intrinsics are
+     * scaled to match, so poses stay correct.
+     *
+     * @param scale the scale to detect at, e.g. 0.5 to detect at half resolution
+     */
+    public void setDetectionScale(double scale)
+    {
+        detectionScale = scale;
+    }
+
+    /*
+     * Looks up the intrinsics for the frame size we're being fed, rebuilding
+     * the camera matrix only when they actually change
+     */
+    void updateIntrinsics(int frameWidth, int frameHeight)
+    {
+        // Look again if the frame size changed, or a calibration was registered since
+        int generation = CameraIntrinsics.getGeneration();
+
+        if(intrinsics != null && intrinsics.width == frameWidth && intrinsics.height == frameHeight
+                && intrinsicsGeneration == generation)
+        {
+            return;
+        }
+
+        intrinsics = CameraIntrinsics.lookup(cameraName, frameWidth, frameHeight);
+        intrinsicsGeneration = generation;
+        constructMatrix();
+    }
+
+    ArrayList<AprilTagDetection> detectInRegionsParallel(Mat input, List<Rect> regions)
+    {
+        float currentDecimation;
+        synchronized (decimationSync)
+        {
+            currentDecimation = decimation;
+        }
+
+        // Grow our set of worker contexts as needed; they stick around for future frames
+        while(workerDetectors.size() < regions.size())
+        {
+            workerDetectors.add(AprilTagDetectorPool.acquire(AprilTagDetectorJNI.TagFamily.TAG_36h11, currentDecimation, 1));
+            workerGrey.add(new Mat());
+            workerScaledGrey.add(new Mat());
+        }
+
+        workerTasks.clear();
+
+        for(int i = 0; i < regions.size(); i++)
+        {
+            final Rect region = regions.get(i);
+            final long workerPtr = workerDetectors.get(i).getPtr();
+            final Mat workerBuf = workerGrey.get(i);
+            final Mat workerScaledBuf = workerScaledGrey.get(i);
+
+            workerTasks.add(VisionWorkerPool.get().submit(() -> detectInRegion(input, region, workerPtr, workerBuf, workerScaledBuf)));
+        }
+
+        ArrayList<AprilTagDetection> merged = new ArrayList<>();
+
+        for(ForkJoinTask<ArrayList<AprilTagDetection>> task : workerTasks)
+        {
+            merged.addAll(task.join());
+        }
+
+        return merged;
+    }
+
+    void computeTiles(int frameWidth, int frameHeight)
+    {
+        tiles.clear();
+
+        int tileWidth = (int) Math.ceil((double) frameWidth / TILE_COLUMNS);
+        int tileHeight = (int) Math.ceil((double) frameHeight / TILE_ROWS);
+        int overlapX = (int) (tileWidth * TILE_OVERLAP);
+        int overlapY = (int) (tileHeight * TILE_OVERLAP);
+
+        for(int row = 0; row < TILE_ROWS; row++)
+        {
+            for(int col = 0; col < TILE_COLUMNS; col++)
+            {
+                int x0 = Math.max(0, col*tileWidth - overlapX);
+                int y0 = Math.max(0, row*tileHeight - overlapY);
+                int x1 = Math.min(frameWidth, (col+1)*tileWidth + overlapX);
+                int y1 = Math.min(frameHeight, (row+1)*tileHeight + overlapY);
+
+                if(x1 > x0 && y1 > y0)
+                {
+                    tiles.add(new Rect(x0, y0, x1 - x0, y1 - y0));
+                }
+            }
+        }
+    }
+
+    /*
+     * Tags inside the overlap between tiles get found once per tile. Drop all
+     * but the most confident detection of each one.
+     */
+    static ArrayList<AprilTagDetection> deduplicate(ArrayList<AprilTagDetection> detections)
+    {
+        ArrayList<AprilTagDetection> unique = new ArrayList<>(detections.size());
+
+        for(AprilTagDetection detection : detections)
+        {
+            boolean duplicate = false;
+
+            for(int i = 0; i < unique.size(); i++)
+            {
+                AprilTagDetection other = unique.get(i);
+
+                if(other.id == detection.id && meanCornerDistance(other, detection) < DUPLICATE_CORNER_DISTANCE_PX)
+                {
+                    if(detection.decisionMargin > other.decisionMargin)
+                    {
+                        unique.set(i, detection);
+                    }
+
+                    duplicate = true;
+                    break;
+                }
+            }
+
+            if(!duplicate)
+            {
+                unique.add(detection);
+            }
+        }
+
+        return unique;
+    }
+
+    static double meanCornerDistance(AprilTagDetection a, AprilTagDetection b)
+    {
+        double total = 0;
+
+        for(int i = 0; i < 4; i++)
+        {
+            total += Math.hypot(a.corners[i].x - b.corners[i].x, a.corners[i].y - b.corners[i].y);
+        }
+
+        return total / 4;
+    }
+
+    void computeTrackingRois(int frameWidth, int frameHeight)
+    {
+        trackingRois.clear();
+
+        for(AprilTagDetection detection : detections)
+        {
+            double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+            double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+
+            for(Point corner : detection.corners)
+            {
+                minX = Math.min(minX, corner.x);
+                minY = Math.min(minY, corner.y);
+                maxX = Math.max(maxX, corner.x);
+                maxY = Math.max(maxY, corner.y);
+            }
+
+            double pad = Math.max(maxX - minX, maxY - minY) * ROI_PADDING;
+
+            int x0 = (int) Math.max(0, Math.floor(minX - pad));
+            int y0 = (int) Math.max(0, Math.floor(minY - pad));
+            int x1 = (int) Math.min(frameWidth, Math.ceil(maxX + pad));
+            int y1 = (int) Math.min(frameHeight, Math.ceil(maxY + pad));
+
+            if(x1 <= x0 || y1 <= y0)
+            {
+                continue;
+            }
+
+            Rect roi = new Rect(x0, y0, x1 - x0, y1 - y0);
+
+            // Tags that sit close together would otherwise be detected twice, once in each
+            // ROI, so merge any overlapping regions into their union
+            for(int i = 0; i < trackingRois.size(); i++)
+            {
+                Rect other = trackingRois.get(i);
+
+                if(roi.x < other.x + other.width && other.x < roi.x + roi.width
+                        && roi.y < other.y + other.height && other.y < roi.y + roi.height)
+                {
+                    int ux0 = Math.min(roi.x, other.x);
+                    int uy0 = Math.min(roi.y, other.y);
+                    int ux1 = Math.max(roi.x + roi.width, other.x + other.width);
+                    int uy1 = Math.max(roi.y + roi.height, other.y + other.height);
+                    roi = new Rect(ux0, uy0, ux1 - ux0, uy1 - uy0);
+
+                    trackingRois.remove(i);
+                    i = -1; // The union may now overlap an ROI we already passed
+                }
+            }
+
+            trackingRois.add(roi);
+        }
     }
 
     public void setDecimation(float decimation)
@@ -154,6 +990,171 @@ public class AprilTagDetectionPipeline extends OpenCvPipeline
         }
     }
 
+    /**
+     * Enable or disable the adaptive decimation controller. While enabled, the pipeline steps
+     * decimation through {@link #DECIMATION_LEVELS} to hold the detector near the target time,
+     * without decimating so hard that the smallest visible tag would no longer be found.
+     * While no tags are in view, decimation stays at or below {@link #MAX_SEARCH_DECIMATION}.
+     * Calls to {@link #setDecimation(float)} made while it's enabled will be overridden.
+     *
+     * @param enabled whether to run the controller
+     * @param targetDetectorTimeMs the detector time per frame to aim for, in milliseconds
+     */
+    public void setAdaptiveDecimation(boolean enabled, double targetDetectorTimeMs)
+    {
+        this.targetDetectorTimeMs = targetDetectorTimeMs;
+        adaptiveDecimation = enabled;
+    }
+
+    void updateAdaptiveDecimation(double detectorTimeMs)
+    {
+        if(!decimationControllerRunning)
+        {
+            // Start from whichever level is closest to what we're currently running at
+            float current;
+            synchronized (decimationSync)
+            {
+                current = decimation;
+            }
+
+            decimationLevel = 0;
+            for(int i = 1; i < DECIMATION_LEVELS.length; i++)
+            {
+                if(Math.abs(DECIMATION_LEVELS[i] - current) < Math.abs(DECIMATION_LEVELS[decimationLevel] - current))
+                {
+                    decimationLevel = i;
+                }
+            }
+
+            detectorTimeAvgMs = detectorTimeMs;
+            framesSinceDecimationChange = 0;
+            decimationControllerRunning = true;
+        }
+
+        // Smooth the detector time so a single slow frame doesn't trigger a change
+        detectorTimeAvgMs += (detectorTimeMs - detectorTimeAvgMs) * DETECTOR_TIME_SMOOTHING;
+        framesSinceDecimationChange++;
+
+        if(framesSinceDecimationChange < DECIMATION_HOLD_FRAMES)
+        {
+            return;
+        }
+
+        // With nothing in view, frame time is no reason to decimate past the search cap;
+        // we'd only be making it harder to find the next tag
+        int maxLevel = detections.isEmpty() ? searchDecimationLevel() : DECIMATION_LEVELS.length - 1;
+
+        if(decimationLevel > maxLevel)
+        {
+            // The tags we were decimating for are gone, so drop straight back to the cap
+            changeDecimationLevel(maxLevel);
+            return;
+        }
+
+        double target = targetDetectorTimeMs;
+        double smallestTag = smallestTagSizePx();
+        float current = DECIMATION_LEVELS[decimationLevel];
+        int newLevel = decimationLevel;
+
+        if(smallestTag / current < MIN_DECIMATED_TAG_SIZE_PX && decimationLevel > 0)
+        {
+            // We're about to lose the smallest tag; range wins over frame time
+            newLevel = decimationLevel - 1;
+        }
+        else if(detectorTimeAvgMs > target * (1 + DECIMATION_HYSTERESIS) && decimationLevel < maxLevel)
+        {
+            // Too slow, so decimate harder as long as every tag stays comfortably findable.
+            // The extra margin keeps us from immediately stepping back down again.
+            if(smallestTag / DECIMATION_LEVELS[decimationLevel + 1] >= MIN_DECIMATED_TAG_SIZE_PX * (1 + DECIMATION_HYSTERESIS))
+            {
+                newLevel = decimationLevel + 1;
+            }
+        }
+        else if(detectorTimeAvgMs < target * (1 - DECIMATION_HYSTERESIS) && decimationLevel > 0)
+        {
+            // Time to spare, so buy back some range. Detector time scales with the number of
+            // pixels, so only step down if the predicted time would still be on target;
+            // otherwise we'd just bounce straight back up.
+            float lower = DECIMATION_LEVELS[decimationLevel - 1];
+            double predictedTimeMs = detectorTimeAvgMs * (current / lower) * (current / lower);
+
+            if(predictedTimeMs < target)
+            {
+                newLevel = decimationLevel - 1;
+            }
+        }
+
+        if(newLevel != decimationLevel)
+        {
+            changeDecimationLevel(newLevel);
+        }
+    }
+
+    private void changeDecimationLevel(int newLevel)
+    {
+        float previous = DECIMATION_LEVELS[decimationLevel];
+        decimationLevel = newLevel;
+        setDecimation(DECIMATION_LEVELS[newLevel]);
+
+        // Re-seed the average with what we expect at the new level
+        double ratio = previous / DECIMATION_LEVELS[newLevel];
+        detectorTimeAvgMs *= ratio * ratio;
+        framesSinceDecimationChange = 0;
+    }
+
+    /*
+     * The highest decimation level at or below MAX_SEARCH_DECIMATION (or the lowest
+     * level, if they're all above it)
+     */
+    int searchDecimationLevel()
+    {
+        int level = 0;
+
+        for(int i = 1; i < DECIMATION_LEVELS.length; i++)
+        {
+            if(DECIMATION_LEVELS[i] <= MAX_SEARCH_DECIMATION)
+            {
+                level = i;
+            }
+        }
+
+        return level;
+    }
+
+    /*
+     * Returns the shortest side length, in full-frame pixels, of any tag
+     * we detected this frame, or infinity if we didn't see any.
+     */
+    double smallestTagSizePx()
+    {
+        double smallest = Double.POSITIVE_INFINITY;
+
+        for(AprilTagDetection detection : detections)
+        {
+            for(int i = 0; i < 4; i++)
+            {
+                Point a = detection.corners[i];
+                Point b = detection.corners[(i+1) % 4];
+                smallest = Math.min(smallest, Math.hypot(a.x - b.x, a.y - b.y));
+            }
+        }
+
+        return smallest;
+    }
+
+    /**
+     * Get an immutable snapshot of the most recent frame's detections. This never blocks,
+     * so it's safe to poll as often as you like from the OpMode loop. Compare
+     * {@link AprilTagDetectionSnapshot#frameSequence} against the last one you saw to
+     * tell whether anything new has arrived.
+     *
+     * @return the latest snapshot; never null
+     */
+    public AprilTagDetectionSnapshot getLatestSnapshot()
+    {
+        return latestSnapshot.get();
+    }
+
     public ArrayList<AprilTagDetection> getLatestDetections()
     {
         return detections;
@@ -169,6 +1170,29 @@ public class AprilTagDetectionPipeline extends OpenCvPipeline
         }
     }
 
+    void constructTelemetry()
+    {
+        telemetrySection = TelemetryPublisher.get(telemetry).addSection();
+
+        for(int i = 0; i < MAX_TELEMETRY_TAGS; i++)
+        {
+            tagTelemetry[i] = new TelemetryPublisher.Field[] {
+                    telemetrySection.addNumber("\nDetected tag ID", 0),
+                    telemetrySection.addNumber("Translation X", 2, " feet"),
+                    telemetrySection.addNumber("Translation Y", 2, " feet"),
+                    telemetrySection.addNumber("Translation Z", 2, " feet"),
+                    telemetrySection.addNumber("Rotation Yaw", 2, " degrees"),
+                    telemetrySection.addNumber("Rotation Pitch", 2, " degrees"),
+                    telemetrySection.addNumber("Rotation Roll", 2, " degrees")
+            };
+
+            for(TelemetryPublisher.Field field : tagTelemetry[i])
+            {
+                field.hide();
+            }
+        }
+    }
+
     void constructMatrix()
     {
         //     Construct the camera matrix.
@@ -180,15 +1204,13 @@ public class AprilTagDetectionPipeline extends OpenCvPipeline
         //      --         --
         //
 
-        cameraMatrix = new Mat(3,3, CvType.CV_32FC1);
-
-        cameraMatrix.put(0,0, fx);
+        cameraMatrix.put(0,0, intrinsics.fx);
         cameraMatrix.put(0,1,0);
-        cameraMatrix.put(0,2, cx);
+        cameraMatrix.put(0,2, intrinsics.cx);
 
         cameraMatrix.put(1,0,0);
-        cameraMatrix.put(1,1,fy);
-        cameraMatrix.put(1,2,cy);
+        cameraMatrix.put(1,1, intrinsics.fy);
+        cameraMatrix.put(1,2, intrinsics.cy);
 
         cameraMatrix.put(2, 0, 0);
         cameraMatrix.put(2,1,0);
@@ -196,107 +1218,181 @@ public class AprilTagDetectionPipeline extends OpenCvPipeline
     }
 
     /**
-     * Draw a 3D axis marker on a detection. (Similar to what Vuforia does)
+     * Enable or disable re-solving each tag's pose with OpenCV's SOLVEPNP_IPPE_SQUARE
+     * instead of re-using the pose AprilTag already computed. Only useful as a fallback
+     * if the native pose ever disagrees with what's drawn.
      *
-     * @param buf the RGB buffer on which to draw the marker
-     * @param length the length of each of the marker 'poles'
-     * @param rvec the rotation vector of the detection
-     * @param tvec the translation vector of the detection
-     * @param cameraMatrix the camera matrix used when finding the detection
+     * @param enabled whether to solve the overlay pose with solvePnP
      */
-    void drawAxisMarker(Mat buf, double length, int thickness, Mat rvec, Mat tvec, Mat cameraMatrix)
+    public void setUseIppeSquarePose(boolean enabled)
+    {
+        useIppeSquarePose = enabled;
+    }
+
+    void constructOverlayPoints()
     {
         // The points in 3D space we wish to project onto the 2D image plane.
         // The origin of the coordinate space is assumed to be in the center of the detection.
-        MatOfPoint3f axis = new MatOfPoint3f(
+        double axisLength = tagsizeY/2.0;
+        double cubeLength = tagsizeX;
+        double halfWidth = tagsizeX/2.0;
+        double halfHeight = tagsizeY/2.0;
+
+        overlayPoints3d.fromArray(
+                // Axis marker
                 new Point3(0,0,0),
-                new Point3(length,0,0),
-                new Point3(0,length,0),
-                new Point3(0,0,-length)
-        );
+                new Point3(axisLength,0,0),
+                new Point3(0,axisLength,0),
+                new Point3(0,0,-axisLength),
 
-        // Project those points
-        MatOfPoint2f matProjectedPoints = new MatOfPoint2f();
-        Calib3d.projectPoints(axis, rvec, tvec, cameraMatrix, new MatOfDouble(), matProjectedPoints);
-        Point[] projectedPoints = matProjectedPoints.toArray();
+                // Cube base
+                new Point3(-halfWidth, halfHeight,0),
+                new Point3( halfWidth, halfHeight,0),
+                new Point3( halfWidth,-halfHeight,0),
+                new Point3(-halfWidth,-halfHeight,0),
+
+                // Cube top
+                new Point3(-halfWidth, halfHeight,-cubeLength),
+                new Point3( halfWidth, halfHeight,-cubeLength),
+                new Point3( halfWidth,-halfHeight,-cubeLength),
+                new Point3(-halfWidth,-halfHeight,-cubeLength));
 
-        // Draw the marker!
-        Imgproc.line(buf, projectedPoints[0], projectedPoints[1], red, thickness);
-        Imgproc.line(buf, projectedPoints[0], projectedPoints[2], green, thickness);
-        Imgproc.line(buf, projectedPoints[0], projectedPoints[3], blue, thickness);
+        // The 3d points of the tag in an 'ideal projection', used when solving with OpenCV
+        tagCorners3d.fromArray(
+                new Point3(-halfWidth, halfHeight, 0),
+                new Point3( halfWidth, halfHeight, 0),
+                new Point3( halfWidth,-halfHeight, 0),
+                new Point3(-halfWidth,-halfHeight, 0));
 
-        Imgproc.circle(buf, projectedPoints[0], thickness, white, -1);
+        tagCorners2d.alloc(4);
+        overlayPoints2d.alloc(OVERLAY_POINT_COUNT);
+
+        for(int i = 0; i < OVERLAY_POINT_COUNT; i++)
+        {
+            overlayPoints[i] = new Point();
+        }
     }
 
-    void draw3dCubeMarker(Mat buf, double length, double tagWidth, double tagHeight, int thickness, Mat rvec, Mat tvec, Mat cameraMatrix)
+    /**
+     * Draw a 3D axis marker (similar to what Vuforia does) and a 3D cube on a detection.
+     * All 12 points are projected with a single call into preallocated buffers.
+     *
+     * @param buf the RGB buffer on which to draw the marker
+     * @param pose the pose of the detection
+     * @param cameraMatrix the camera matrix used when finding the detection
+     */
+    void drawOverlay(Mat buf, Pose pose, Mat cameraMatrix)
     {
-        //axis = np.float32([[0,0,0], [0,3,0], [3,3,0], [3,0,0],
-        //       [0,0,-3],[0,3,-3],[3,3,-3],[3,0,-3] ])
+        // Project those points
+        Calib3d.projectPoints(overlayPoints3d, pose.rvec, pose.tvec, cameraMatrix, noDistortion, overlayPoints2d);
+        overlayPoints2d.get(0, 0, overlayPointData);
 
-        // The points in 3D space we wish to project onto the 2D image plane.
-        // The origin of the coordinate space is assumed to be in the center of the detection.
-        MatOfPoint3f axis = new MatOfPoint3f(
-                new Point3(-tagWidth/2, tagHeight/2,0),
-                new Point3( tagWidth/2, tagHeight/2,0),
-                new Point3( tagWidth/2,-tagHeight/2,0),
-                new Point3(-tagWidth/2,-tagHeight/2,0),
-                new Point3(-tagWidth/2, tagHeight/2,-length),
-                new Point3( tagWidth/2, tagHeight/2,-length),
-                new Point3( tagWidth/2,-tagHeight/2,-length),
-                new Point3(-tagWidth/2,-tagHeight/2,-length));
+        for(int i = 0; i < OVERLAY_POINT_COUNT; i++)
+        {
+            overlayPoints[i].x = overlayPointData[i*2];
+            overlayPoints[i].y = overlayPointData[i*2+1];
+        }
 
-        // Project those points
-        MatOfPoint2f matProjectedPoints = new MatOfPoint2f();
-        Calib3d.projectPoints(axis, rvec, tvec, cameraMatrix, new MatOfDouble(), matProjectedPoints);
-        Point[] projectedPoints = matProjectedPoints.toArray();
+        // Draw the axis marker!
+        Imgproc.line(buf, overlayPoints[0], overlayPoints[1], red, AXIS_THICKNESS);
+        Imgproc.line(buf, overlayPoints[0], overlayPoints[2], green, AXIS_THICKNESS);
+        Imgproc.line(buf, overlayPoints[0], overlayPoints[3], blue, AXIS_THICKNESS);
+
+        Imgproc.circle(buf, overlayPoints[0], AXIS_THICKNESS, white, -1);
 
         // Pillars
-        for(int i = 0; i < 4; i++)
+        for(int i = 4; i < 8; i++)
         {
-            Imgproc.line(buf, projectedPoints[i], projectedPoints[i+4], blue, thickness);
+            Imgproc.line(buf, overlayPoints[i], overlayPoints[i+4], blue, CUBE_THICKNESS);
         }
 
-        // Base lines
-        //Imgproc.line(buf, projectedPoints[0], projectedPoints[1], blue, thickness);
-        //Imgproc.line(buf, projectedPoints[1], projectedPoints[2], blue, thickness);
-        //Imgproc.line(buf, projectedPoints[2], projectedPoints[3], blue, thickness);
-        //Imgproc.line(buf, projectedPoints[3], projectedPoints[0], blue, thickness);
-
         // Top lines
-        Imgproc.line(buf, projectedPoints[4], projectedPoints[5], green, thickness);
-        Imgproc.line(buf, projectedPoints[5], projectedPoints[6], green, thickness);
-        Imgproc.line(buf, projectedPoints[6], projectedPoints[7], green, thickness);
-        Imgproc.line(buf, projectedPoints[4], projectedPoints[7], green, thickness);
+        Imgproc.line(buf, overlayPoints[8], overlayPoints[9], green, CUBE_THICKNESS);
+        Imgproc.line(buf, overlayPoints[9], overlayPoints[10], green, CUBE_THICKNESS);
+        Imgproc.line(buf, overlayPoints[10], overlayPoints[11], green, CUBE_THICKNESS);
+        Imgproc.line(buf, overlayPoints[8], overlayPoints[11], green, CUBE_THICKNESS);
+    }
+
+    /**
+     * Converts the pose AprilTag computed for a detection into an OpenCV rvec/tvec,
+     * without solving for it again. AprilTag's tag frame matches the one used by
+     * {@link #poseFromTrapezoid(Point[], Mat, Pose)}, so only the rotation needs converting.
+     *
+     * @param aprilTagPose the pose reported by the detector
+     * @param pose the pose to write the rvec/tvec into
+     */
+    void poseFromAprilTagPose(AprilTagPose aprilTagPose, Pose pose)
+    {
+        poseFromEulerAngles(aprilTagPose.x, aprilTagPose.y, aprilTagPose.z,
+                aprilTagPose.yaw, aprilTagPose.pitch, aprilTagPose.roll, pose);
+    }
+
+    /**
+     * Converts a translation and Euler angles into an OpenCV rvec/tvec.
+     *
+     * The angles must follow the AprilTag plugin's AprilTagPose convention: yaw, pitch
+     * and roll are the Z-Y-X (Tait-Bryan) angles of the rotation matrix R that apriltag's
+     * pose estimate gives, in the camera frame, i.e. R = Rz(yaw) * Ry(pitch) * Rx(roll),
+     * extracted as yaw = atan2(R10, R00), pitch = atan2(-R20, sqrt(R21^2 + R22^2)) and
+     * roll = atan2(R21, R22). The matrix built here is the exact inverse of that extraction
+     * (for |pitch| &lt; 90 degrees, where it's unambiguous). TagPoseFilter and
+     * AprilTagDetectionSnapshot carry the angles through untouched, so predicted poses
+     * follow the same convention. If the drawn axes ever disagree with the tag,
+     * {@link #setUseIppeSquarePose(boolean)} avoids depending on it.
+     *
+     * @param x the tag's x translation
+     * @param y the tag's y translation
+     * @param z the tag's z translation
+     * @param yaw rotation about the camera's z axis, in radians
+     * @param pitch rotation about the camera's y axis, in radians
+     * @param roll rotation about the camera's x axis, in radians
+     * @param pose the pose to write the rvec/tvec into
+     */
+    void poseFromEulerAngles(double x, double y, double z, double yaw, double pitch, double roll, Pose pose)
+    {
+        pose.tvec.create(3, 1, CvType.CV_64FC1);
+        pose.tvec.put(0, 0, x, y, z);
+
+        // Rebuild the rotation matrix from the reported angles, R = Rz(yaw) * Ry(pitch) * Rx(roll)
+        double cosYaw = Math.cos(yaw), sinYaw = Math.sin(yaw);
+        double cosPitch = Math.cos(pitch), sinPitch = Math.sin(pitch);
+        double cosRoll = Math.cos(roll), sinRoll = Math.sin(roll);
+
+        rotationData[0] = cosYaw*cosPitch;
+        rotationData[1] = cosYaw*sinPitch*sinRoll - sinYaw*cosRoll;
+        rotationData[2] = cosYaw*sinPitch*cosRoll + sinYaw*sinRoll;
+        rotationData[3] = sinYaw*cosPitch;
+        rotationData[4] = sinYaw*sinPitch*sinRoll + cosYaw*cosRoll;
+        rotationData[5] = sinYaw*sinPitch*cosRoll - cosYaw*sinRoll;
+        rotationData[6] = -sinPitch;
+        rotationData[7] = cosPitch*sinRoll;
+        rotationData[8] = cosPitch*cosRoll;
+
+        rotationMatrix.put(0, 0, rotationData);
+        Calib3d.Rodrigues(rotationMatrix, pose.rvec);
     }
 
     /**
      * Extracts 6DOF pose from a trapezoid, using a camera intrinsics matrix and the
-     * original size of the tag.
+     * original size of the tag. Uses SOLVEPNP_IPPE_SQUARE, which is both faster and
+     * better suited to a planar square than the default iterative solver.
      *
      * @param points the points which form the trapezoid
      * @param cameraMatrix the camera intrinsics matrix
-     * @param tagsizeX the original width of the tag
-     * @param tagsizeY the original height of the tag
-     * @return the 6DOF pose of the camera relative to the tag
+     * @param pose the pose to write the 6DOF pose of the camera relative to the tag into
      */
-    Pose poseFromTrapezoid(Point[] points, Mat cameraMatrix, double tagsizeX , double tagsizeY)
+    void poseFromTrapezoid(Point[] points, Mat cameraMatrix, Pose pose)
     {
         // The actual 2d points of the tag detected in the image
-        MatOfPoint2f points2d = new MatOfPoint2f(points);
-
-        // The 3d points of the tag in an 'ideal projection'
-        Point3[] arrayPoints3d = new Point3[4];
-        arrayPoints3d[0] = new Point3(-tagsizeX/2, tagsizeY/2, 0);
-        arrayPoints3d[1] = new Point3(tagsizeX/2, tagsizeY/2, 0);
-        arrayPoints3d[2] = new Point3(tagsizeX/2, -tagsizeY/2, 0);
-        arrayPoints3d[3] = new Point3(-tagsizeX/2, -tagsizeY/2, 0);
-        MatOfPoint3f points3d = new MatOfPoint3f(arrayPoints3d);
+        for(int i = 0; i < 4; i++)
+        {
+            tagCornerData[i*2] = (float) points[i].x;
+            tagCornerData[i*2+1] = (float) points[i].y;
+        }
+        tagCorners2d.put(0, 0, tagCornerData);
 
         // Using this information, actually solve for pose
-        Pose pose = new Pose();
-        Calib3d.solvePnP(points3d, points2d, cameraMatrix, new MatOfDouble(), pose.rvec, pose.tvec, false);
-
-        return pose;
+        Calib3d.solvePnP(tagCorners3d, tagCorners2d, cameraMatrix, noDistortion, pose.rvec, pose.tvec, false, Calib3d.SOLVEPNP_IPPE_SQUARE);
     }
 
     /*
@@ -0,0 +1,171 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.openftc.apriltag.AprilTagDetection;
+
+import java.util.List;
+
+/*
+ * An immutable copy of the AprilTag detections from a single frame.
+ *
+ * Everything is held as primitives, so unlike the AprilTagDetection objects
+ * returned by the detector, a snapshot can be handed to any thread and read
+ * at any time without worrying about the vision thread changing it underneath.
+ */
+public final class AprilTagDetectionSnapshot
+{
+    public static final AprilTagDetectionSnapshot EMPTY = new AprilTagDetectionSnapshot(0, 0, new Tag[0]);
+
+    /*
+     * The sequence number of the frame these detections came from. Increases by
+     * one for every frame the pipeline processes, so a reader can tell whether
+     * it has already seen this snapshot.
+     */
+    public final long frameSequence;
+
+    /*
+     * The System.nanoTime() at which the pipeline started processing the frame
+     */
+    public final long captureTimeNanos;
+
+    private final Tag[] tags;
+
+    private AprilTagDetectionSnapshot(long frameSequence, long captureTimeNanos, Tag[] tags)
+    {
+        this.frameSequence = frameSequence;
+        this.captureTimeNanos = captureTimeNanos;
+        this.tags = tags;
+    }
+
+    static AprilTagDetectionSnapshot fromDetections(long frameSequence, long captureTimeNanos, List<AprilTagDetection> detections)
+    {
+        Tag[] tags = new Tag[detections.size()];
+
+        for(int i = 0; i < tags.length; i++)
+        {
+            tags[i] = new Tag(detections.get(i));
+        }
+
+        return new AprilTagDetectionSnapshot(frameSequence, captureTimeNanos, tags);
+    }
+
+    static AprilTagDetectionSnapshot fromPredictions(long frameSequence, long captureTimeNanos, List<TagPoseFilter> filters)
+    {
+        Tag[] tags = new Tag[filters.size()];
+
+        for(int i = 0; i < tags.length; i++)
+        {
+            tags[i] = new Tag(filters.get(i));
+        }
+
+        return new AprilTagDetectionSnapshot(frameSequence, captureTimeNanos, tags);
+    }
+
+    public int size()
+    {
+        return tags.length;
+    }
+
+    public Tag get(int index)
+    {
+        return tags[index];
+    }
+
+    /*
+     * Returns the tag with the given ID, or null if it wasn't seen in this frame
+     */
+    public Tag findById(int id)
+    {
+        for(Tag tag : tags)
+        {
+            if(tag.id == id)
+            {
+                return tag;
+            }
+        }
+
+        return null;
+    }
+
+    /*
+     * How long ago, in milliseconds, the frame behind this snapshot was captured
+     */
+    public double ageMs()
+    {
+        return (System.nanoTime() - captureTimeNanos) / 1e6;
+    }
+
+    public static final class Tag
+    {
+        public final int id;
+        public final float decisionMargin;
+
+        /*
+         * True if the detector didn't actually run on this frame, and the pose was
+         * extrapolated from earlier detections instead. The center, corners and
+         * decision margin of a predicted tag are those of its last real detection.
+         */
+        public final boolean predicted;
+
+        public final double centerX;
+        public final double centerY;
+
+        // Corners are stored x0, y0, x1, y1, ... in the same order the detector reports them
+        private final double[] corners = new double[8];
+
+        // UNITS ARE METERS
+        public final double x;
+        public final double y;
+        public final double z;
+
+        // UNITS ARE RADIANS
+        public final double yaw;
+        public final double pitch;
+        public final double roll;
+
+        Tag(AprilTagDetection detection)
+        {
+            this(detection, false, detection.pose.x, detection.pose.y, detection.pose.z,
+                    detection.pose.yaw, detection.pose.pitch, detection.pose.roll);
+        }
+
+        Tag(TagPoseFilter filter)
+        {
+            this(filter.lastMeasurement, true,
+                    filter.predicted[TagPoseFilter.X], filter.predicted[TagPoseFilter.Y], filter.predicted[TagPoseFilter.Z],
+                    filter.predicted[TagPoseFilter.YAW], filter.predicted[TagPoseFilter.PITCH], filter.predicted[TagPoseFilter.ROLL]);
+        }
+
+        private Tag(AprilTagDetection detection, boolean predicted, double x, double y, double z, double yaw, double pitch, double roll)
+        {
+            id = detection.id;
+            decisionMargin = detection.decisionMargin;
+            this.predicted = predicted;
+
+            centerX = detection.center.x;
+            centerY = detection.center.y;
+
+            for(int i = 0; i < 4; i++)
+            {
+                corners[i*2] = detection.corners[i].x;
+                corners[i*2+1] = detection.corners[i].y;
+            }
+
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.yaw = yaw;
+            this.pitch = pitch;
+            this.roll = roll;
+        }
+
+        public double cornerX(int corner)
+        {
+            return corners[corner*2];
+        }
+
+        public double cornerY(int corner)
+        {
+            return corners[corner*2+1];
+        }
+    }
+}
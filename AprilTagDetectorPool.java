@@ -0,0 +1,183 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.openftc.apriltag.AprilTagDetectorJNI;
+
+import java.util.ArrayList;
+
+/*
+ * A small, process-wide pool of native AprilTag detector contexts.
+ *
+ * Building a detector context is expensive, and before this existed every
+ * pipeline instance built its own and only freed it whenever the GC got
+ * around to finalizing the pipeline. Pipelines now acquire a Handle instead,
+ * and closing the Handle hands the (still warm) context back to the pool so
+ * that the next OpMode's pipeline can pick it straight back up.
+ *
+ * (java.lang.ref.Cleaner isn't available on the Android versions the robot
+ * controller runs, so handles fall back to a finalizer if they're never closed.)
+ */
+public final class AprilTagDetectorPool
+{
+    // How many idle contexts we're willing to keep around; any more get released
+    public static int MAX_IDLE_CONTEXTS = 4;
+
+    private static final ArrayList<Context> idleContexts = new ArrayList<>();
+
+    private AprilTagDetectorPool() {}
+
+    /*
+     * The native context itself, plus the settings it was built with
+     */
+    private static final class Context
+    {
+        final long ptr;
+        final String family;
+        final int threads;
+        float decimation;
+
+        Context(String family, float decimation, int threads)
+        {
+            this.family = family;
+            this.decimation = decimation;
+            this.threads = threads;
+            ptr = AprilTagDetectorJNI.createApriltagDetector(family, decimation, threads);
+        }
+    }
+
+    /**
+     * Acquire a detector context, re-using an idle one from the pool if possible.
+     * Be sure to close the returned handle once you're done with it!
+     *
+     * @param family the tag family to detect
+     * @param decimation the decimation to run the detector at
+     * @param threads the number of threads the detector should use
+     * @return a handle to the detector context
+     */
+    public static Handle acquire(AprilTagDetectorJNI.TagFamily family, float decimation, int threads)
+    {
+        Context context = null;
+
+        synchronized (idleContexts)
+        {
+            // Prefer an exact match, but a context that only differs by decimation
+            // is still far cheaper to re-use than to build from scratch
+            int bestIndex = -1;
+
+            for(int i = 0; i < idleContexts.size(); i++)
+            {
+                Context candidate = idleContexts.get(i);
+
+                if(candidate.family.equals(family.string) && candidate.threads == threads)
+                {
+                    bestIndex = i;
+
+                    if(candidate.decimation == decimation)
+                    {
+                        break;
+                    }
+                }
+            }
+
+            if(bestIndex != -1)
+            {
+                context = idleContexts.remove(bestIndex);
+            }
+        }
+
+        if(context == null)
+        {
+            context = new Context(family.string, decimation, threads);
+        }
+
+        Handle handle = new Handle(context);
+        handle.setDecimation(decimation);
+        return handle;
+    }
+
+    /**
+     * Release every idle context in the pool, e.g. when vision won't be used again
+     */
+    public static void clear()
+    {
+        synchronized (idleContexts)
+        {
+            for(Context context : idleContexts)
+            {
+                AprilTagDetectorJNI.releaseApriltagDetector(context.ptr);
+            }
+
+            idleContexts.clear();
+        }
+    }
+
+    static void recycle(Context context)
+    {
+        synchronized (idleContexts)
+        {
+            if(idleContexts.size() < MAX_IDLE_CONTEXTS)
+            {
+                idleContexts.add(context);
+                return;
+            }
+        }
+
+        AprilTagDetectorJNI.releaseApriltagDetector(context.ptr);
+    }
+
+    /*
+     * Exclusive ownership of one detector context, until closed
+     */
+    public static final class Handle implements AutoCloseable
+    {
+        private Context context;
+
+        private Handle(Context context)
+        {
+            this.context = context;
+        }
+
+        public long getPtr()
+        {
+            if(context == null)
+            {
+                throw new IllegalStateException("Detector handle has already been closed");
+            }
+
+            return context.ptr;
+        }
+
+        public void setDecimation(float decimation)
+        {
+            // Throws if we've been closed, rather than touching a context someone else may own
+            long ptr = getPtr();
+
+            if(context.decimation != decimation)
+            {
+                AprilTagDetectorJNI.setApriltagDetectorDecimation(ptr, decimation);
+                context.decimation = decimation;
+            }
+        }
+
+        @Override
+        public synchronized void close()
+        {
+            if(context != null)
+            {
+                recycle(context);
+                context = null;
+            }
+        }
+
+        @Override
+        protected void finalize()
+        {
+            // Safety net only; nobody else can be holding this handle by now, so
+            // free the context outright rather than resurrecting it into the pool
+            if(context != null)
+            {
+                AprilTagDetectorJNI.releaseApriltagDetector(context.ptr);
+                context = null;
+            }
+        }
+    }
+}
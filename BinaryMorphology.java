@@ -0,0 +1,204 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+/*
+ * Erosion and dilation of binary masks, by rectangular elements, as one merged chain.
+ *
+ * Noise reduction on a mask is usually a few erode() and dilate() calls in a row.
+ * But eroding twice by a rectangle is the same as eroding once by a bigger
+ * rectangle, so consecutive operations of the same kind are merged into a single
+ * structuring element when the chain is built. Each remaining operation is then
+ * one native erode() or dilate() call on the mask (OpenCV runs rectangular
+ * elements as separate row and column passes).
+ *
+ * Pixels outside the image are ignored, as with OpenCV's default border, so the
+ * results match the unmerged erode()/dilate() calls exactly. Any non-zero input
+ * pixel counts as set; set output pixels are 255.
+ */
+public final class BinaryMorphology
+{
+    private static final int ERODE = 0, DILATE = 1;
+
+    // The chain of operations. Each one covers offsets [left, right] by [up, down] around a pixel.
+    private int numOps = 0;
+    private int[] types = new int[4];
+    private int[] lefts = new int[4];
+    private int[] rights = new int[4];
+    private int[] ups = new int[4];
+    private int[] downs = new int[4];
+
+    // The merged structuring element of each operation, built on first use
+    private Mat[] kernels = new Mat[4];
+    private Point[] anchors = new Point[4];
+
+    /**
+     * Add an erosion by a width x height rectangle to the chain
+     *
+     * @param width the width of the element
+     * @param height the height of the element
+     * @param iterations how many times to erode by it
+     * @return this, for chaining
+     */
+    public BinaryMorphology erode(int width, int height, int iterations)
+    {
+        return add(ERODE, width, height, iterations);
+    }
+
+    /**
+     * Add a dilation by a width x height rectangle to the chain
+     *
+     * @param width the width of the element
+     * @param height the height of the element
+     * @param iterations how many times to dilate by it
+     * @return this, for chaining
+     */
+    public BinaryMorphology dilate(int width, int height, int iterations)
+    {
+        return add(DILATE, width, height, iterations);
+    }
+
+    /*
+     * Add a morphological opening (erode, then dilate) to the chain, as MORPH_OPEN would
+     */
+    public BinaryMorphology open(int width, int height, int iterations)
+    {
+        return erode(width, height, iterations).dilate(width, height, iterations);
+    }
+
+    /*
+     * Add a morphological closing (dilate, then erode) to the chain, as MORPH_CLOSE would
+     */
+    public BinaryMorphology close(int width, int height, int iterations)
+    {
+        return dilate(width, height, iterations).erode(width, height, iterations);
+    }
+
+    /*
+     * Remove every operation from the chain
+     */
+    public void clear()
+    {
+        for(int op = 0; op < numOps; op++)
+        {
+            releaseKernel(op);
+        }
+
+        numOps = 0;
+    }
+
+    private BinaryMorphology add(int type, int width, int height, int iterations)
+    {
+        if(width < 1 || height < 1 || iterations < 0)
+        {
+            throw new IllegalArgumentException("Element must be at least 1x1, and iterations can't be negative");
+        }
+
+        if(iterations == 0 || (width == 1 && height == 1))
+        {
+            return this;
+        }
+
+        // As with OpenCV, the anchor is the center of the element (rounded down), so even sized
+        // elements reach one further to the top left than to the bottom right
+        int left = -(width / 2) * iterations;
+        int right = (width - 1 - width / 2) * iterations;
+        int up = -(height / 2) * iterations;
+        int down = (height - 1 - height / 2) * iterations;
+
+        // Merge with the previous operation if it's the same kind
+        if(numOps > 0 && types[numOps-1] == type)
+        {
+            lefts[numOps-1] += left;
+            rights[numOps-1] += right;
+            ups[numOps-1] += up;
+            downs[numOps-1] += down;
+            releaseKernel(numOps-1);
+            return this;
+        }
+
+        if(numOps == types.length)
+        {
+            types = grow(types);
+            lefts = grow(lefts);
+            rights = grow(rights);
+            ups = grow(ups);
+            downs = grow(downs);
+            kernels = Arrays.copyOf(kernels, kernels.length * 2);
+            anchors = Arrays.copyOf(anchors, anchors.length * 2);
+        }
+
+        types[numOps] = type;
+        lefts[numOps] = left;
+        rights[numOps] = right;
+        ups[numOps] = up;
+        downs[numOps] = down;
+        releaseKernel(numOps);
+        numOps++;
+        return this;
+    }
+
+    /**
+     * Run the chain on a mask
+     *
+     * @param src a CV_8UC1 mask
+     * @param dst where to put the result; may be the same Mat as src
+     */
+    public void apply(Mat src, Mat dst)
+    {
+        // Make every set pixel 255, so eroding and dilating only ever see 0 and 255
+        Imgproc.threshold(src, dst, 0, 255, Imgproc.THRESH_BINARY);
+
+        for(int op = 0; op < numOps; op++)
+        {
+            if(kernels[op] == null)
+            {
+                // The element spans [left, right] x [up, down], so its anchor sits -left, -up from its corner
+                kernels[op] = Imgproc.getStructuringElement(Imgproc.MORPH_RECT,
+                        new Size(rights[op] - lefts[op] + 1, downs[op] - ups[op] + 1));
+                anchors[op] = new Point(-lefts[op], -ups[op]);
+            }
+
+            if(types[op] == ERODE)
+            {
+                Imgproc.erode(dst, dst, kernels[op], anchors[op], 1);
+            }
+            else
+            {
+                Imgproc.dilate(dst, dst, kernels[op], anchors[op], 1);
+            }
+        }
+    }
+
+    /*
+     * Free the native structuring elements. The chain can still be used afterwards.
+     */
+    public void release()
+    {
+        for(int op = 0; op < kernels.length; op++)
+        {
+            releaseKernel(op);
+        }
+    }
+
+    private void releaseKernel(int op)
+    {
+        if(kernels[op] != null)
+        {
+            kernels[op].release();
+            kernels[op] = null;
+        }
+    }
+
+    private static int[] grow(int[] array)
+    {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
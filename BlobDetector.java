@@ -0,0 +1,187 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+/*
+ * Finds the blobs (connected groups of set pixels) in a binary mask, and reports
+ * the area, bounding box and centroid of each one.
+ *
+ * When all a pipeline wants to know is how many blobs there are, or where the
+ * biggest one is, tracing every blob's outline with findContours() and then
+ * measuring each outline with contourArea() is wasted effort, and it leaves a
+ * MatOfPoint behind for every blob. connectedComponentsWithStats() labels the
+ * mask in one pass and measures every blob as it goes.
+ *
+ * The results are kept in primitive arrays which are reused between frames,
+ * and only blobs whose area is within [minArea, maxArea] are kept.
+ */
+public final class BlobDetector
+{
+    private static final int CONNECTIVITY = 8;
+
+    private int minArea = 0;
+    private int maxArea = Integer.MAX_VALUE;
+
+    // OpenCV's outputs, reused every frame
+    private final Mat labels = new Mat();
+    private final Mat stats = new Mat();
+    private final Mat centroids = new Mat();
+    private int[] rawStats = new int[0];
+    private double[] rawCentroids = new double[0];
+
+    // The blobs which passed the area filter, in label order
+    private int count = 0;
+    private int[] areas = new int[16];
+    private int[] lefts = new int[16];
+    private int[] tops = new int[16];
+    private int[] widths = new int[16];
+    private int[] heights = new int[16];
+    private double[] centroidXs = new double[16];
+    private double[] centroidYs = new double[16];
+
+    /**
+     * Only keep blobs within a range of areas
+     *
+     * @param minArea the smallest area to keep, in pixels
+     * @param maxArea the largest area to keep, in pixels
+     */
+    public void setAreaLimits(int minArea, int maxArea)
+    {
+        this.minArea = minArea;
+        this.maxArea = maxArea;
+    }
+
+    /**
+     * Find the blobs in a mask
+     *
+     * @param mask a CV_8UC1 mask; any non-zero pixel counts as set
+     * @return how many blobs passed the area filter
+     */
+    public int detect(Mat mask)
+    {
+        int numLabels = Imgproc.connectedComponentsWithStats(mask, labels, stats, centroids, CONNECTIVITY, CvType.CV_32S);
+
+        if(rawStats.length < numLabels * 5)
+        {
+            rawStats = new int[Math.max(numLabels * 5, rawStats.length * 2)];
+            rawCentroids = new double[Math.max(numLabels * 2, rawCentroids.length * 2)];
+        }
+
+        stats.get(0, 0, rawStats);
+        centroids.get(0, 0, rawCentroids);
+
+        count = 0;
+
+        // Label 0 is the background
+        for(int label = 1; label < numLabels; label++)
+        {
+            int area = rawStats[label*5 + Imgproc.CC_STAT_AREA];
+
+            if(area < minArea || area > maxArea)
+            {
+                continue;
+            }
+
+            if(count == areas.length)
+            {
+                grow();
+            }
+
+            areas[count] = area;
+            lefts[count] = rawStats[label*5 + Imgproc.CC_STAT_LEFT];
+            tops[count] = rawStats[label*5 + Imgproc.CC_STAT_TOP];
+            widths[count] = rawStats[label*5 + Imgproc.CC_STAT_WIDTH];
+            heights[count] = rawStats[label*5 + Imgproc.CC_STAT_HEIGHT];
+            centroidXs[count] = rawCentroids[label*2];
+            centroidYs[count] = rawCentroids[label*2 + 1];
+            count++;
+        }
+
+        return count;
+    }
+
+    /*
+     * How many blobs passed the area filter in the last call to detect()
+     */
+    public int count()
+    {
+        return count;
+    }
+
+    /*
+     * The index of the blob with the largest area, or -1 if there were none
+     */
+    public int largest()
+    {
+        int largest = -1;
+
+        for(int i = 0; i < count; i++)
+        {
+            if(largest < 0 || areas[i] > areas[largest])
+            {
+                largest = i;
+            }
+        }
+
+        return largest;
+    }
+
+    // UNITS ARE PIXELS
+    public int area(int blob)
+    {
+        return areas[blob];
+    }
+
+    public int left(int blob)
+    {
+        return lefts[blob];
+    }
+
+    public int top(int blob)
+    {
+        return tops[blob];
+    }
+
+    public int width(int blob)
+    {
+        return widths[blob];
+    }
+
+    public int height(int blob)
+    {
+        return heights[blob];
+    }
+
+    public double centroidX(int blob)
+    {
+        return centroidXs[blob];
+    }
+
+    public double centroidY(int blob)
+    {
+        return centroidYs[blob];
+    }
+
+    public void release()
+    {
+        labels.release();
+        stats.release();
+        centroids.release();
+    }
+
+    private void grow()
+    {
+        int size = areas.length * 2;
+        areas = Arrays.copyOf(areas, size);
+        lefts = Arrays.copyOf(lefts, size);
+        tops = Arrays.copyOf(tops, size);
+        widths = Arrays.copyOf(widths, size);
+        heights = Arrays.copyOf(heights, size);
+        centroidXs = Arrays.copyOf(centroidXs, size);
+        centroidYs = Arrays.copyOf(centroidYs, size);
+    }
+}
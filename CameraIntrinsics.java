@@ -0,0 +1,226 @@
+package org.firstinspires.ftc.teamcode;
+
+import java.util.HashMap;
+import java.util.logging.Logger;
+
+/*
+ * Lens intrinsics for one camera at one resolution, plus a registry of them.
+ *
+ * Intrinsics only hold for the resolution they were calibrated at. Rather than
+ * every pipeline hard-coding a single calibration, pipelines look up the profile
+ * for the frame size they're actually handed. If there's no calibration for that
+ * exact size, one calibrated at the same aspect ratio is scaled to fit. Failing
+ * that, the calibration with the nearest aspect ratio is scaled as well as it can
+ * be, with a warning, since that's only an approximation.
+ *
+ * UNITS ARE PIXELS
+ */
+public final class CameraIntrinsics
+{
+    // How far apart two aspect ratios may be and still count as the same
+    static final double ASPECT_RATIO_TOLERANCE = 0.01;
+
+    private static final HashMap<String, CameraIntrinsics> profiles = new HashMap<>();
+
+    // Bumped on every registration, so users of a looked-up profile can tell when to look again
+    private static volatile int generation = 0;
+
+    private static final Logger logger = Logger.getLogger(CameraIntrinsics.class.getName());
+
+    public final String camera;
+    public final int width;
+    public final int height;
+    public final double fx;
+    public final double fy;
+    public final double cx;
+    public final double cy;
+
+    // True if this profile was scaled from another, rather than calibrated
+    private boolean derived = false;
+
+    public CameraIntrinsics(String camera, int width, int height, double fx, double fy, double cx, double cy)
+    {
+        this.camera = camera;
+        this.width = width;
+        this.height = height;
+        this.fx = fx;
+        this.fy = fy;
+        this.cx = cx;
+        this.cy = cy;
+    }
+
+    /**
+     * Register a calibration, replacing any existing one for the same camera and resolution
+     *
+     * @param intrinsics the calibration to register
+     */
+    public static void register(CameraIntrinsics intrinsics)
+    {
+        synchronized (profiles)
+        {
+            // Anything we previously derived for this camera may have come from an old calibration
+            profiles.values().removeIf(profile -> profile.camera.equals(intrinsics.camera) && profile.derived);
+            profiles.put(key(intrinsics.camera, intrinsics.width, intrinsics.height), intrinsics);
+            generation++;
+        }
+    }
+
+    /**
+     * Register a calibration only if there isn't already one for the same camera and
+     * resolution, e.g. to seed a default without overwriting the user's own
+     *
+     * @param intrinsics the calibration to register
+     * @return whether it was registered
+     */
+    public static boolean registerIfAbsent(CameraIntrinsics intrinsics)
+    {
+        synchronized (profiles)
+        {
+            CameraIntrinsics existing = profiles.get(key(intrinsics.camera, intrinsics.width, intrinsics.height));
+
+            if(existing != null && !existing.derived)
+            {
+                return false;
+            }
+
+            register(intrinsics);
+            return true;
+        }
+    }
+
+    /*
+     * Changes whenever a calibration is registered. If it differs from when a profile
+     * was looked up, that profile may be out of date.
+     */
+    public static int getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * Look up the intrinsics for a camera at a given resolution. If that resolution was never
+     * calibrated, a calibration at the same aspect ratio is scaled to fit, or failing that, the
+     * calibration with the nearest aspect ratio (see {@link #approximatedTo(int, int)}).
+     *
+     * @param camera the name the camera's calibrations were registered under
+     * @param width the width of the frame, in pixels
+     * @param height the height of the frame, in pixels
+     * @return the intrinsics for that camera at that resolution
+     * @throws IllegalArgumentException if that camera has no calibrations at all
+     */
+    public static CameraIntrinsics lookup(String camera, int width, int height)
+    {
+        synchronized (profiles)
+        {
+            CameraIntrinsics exact = profiles.get(key(camera, width, height));
+
+            if(exact != null)
+            {
+                return exact;
+            }
+
+            // Scale from whichever calibration has the nearest aspect ratio, counting ratios
+            // within tolerance as equal. Between equals, go with the one with the most pixels,
+            // since its (absolute) calibration error will shrink when scaled down
+            CameraIntrinsics best = null;
+            double bestDifference = 0;
+            double aspectRatio = (double) width / height;
+
+            for(CameraIntrinsics profile : profiles.values())
+            {
+                if(!profile.camera.equals(camera) || profile.derived)
+                {
+                    continue;
+                }
+
+                double difference = Math.abs((double) profile.width / profile.height - aspectRatio);
+
+                if(difference < ASPECT_RATIO_TOLERANCE * aspectRatio)
+                {
+                    difference = 0;
+                }
+
+                if(best == null || difference < bestDifference
+                        || (difference == bestDifference && profile.width > best.width))
+                {
+                    best = profile;
+                    bestDifference = difference;
+                }
+            }
+
+            if(best == null)
+            {
+                throw new IllegalArgumentException(String.format(
+                        "No intrinsics registered for camera '%s'", camera));
+            }
+
+            CameraIntrinsics scaled;
+
+            if(bestDifference == 0)
+            {
+                scaled = best.scaledTo(width, height);
+            }
+            else
+            {
+                logger.warning(String.format(
+                        "No intrinsics registered for camera '%s' at %dx%d or any resolution with the same aspect ratio; "
+                                + "approximating from %dx%d. Poses will be off, calibrate this resolution!",
+                        camera, width, height, best.width, best.height));
+
+                scaled = best.approximatedTo(width, height);
+            }
+
+            scaled.derived = true;
+            profiles.put(key(camera, width, height), scaled);
+            return scaled;
+        }
+    }
+
+    /**
+     * Scale these intrinsics to a different resolution of the same image, e.g. after resizing
+     *
+     * @param newWidth the width being scaled to
+     * @param newHeight the height being scaled to
+     * @return the scaled intrinsics
+     */
+    public CameraIntrinsics scaledTo(int newWidth, int newHeight)
+    {
+        double scaleX = (double) newWidth / width;
+        double scaleY = (double) newHeight / height;
+
+        // The principal point is in pixel-center coordinates, so it doesn't scale quite linearly
+        return new CameraIntrinsics(camera, newWidth, newHeight,
+                fx * scaleX,
+                fy * scaleY,
+                (cx + 0.5) * scaleX - 0.5,
+                (cy + 0.5) * scaleY - 0.5);
+    }
+
+    /**
+     * Approximate these intrinsics at a resolution with a different aspect ratio. This assumes
+     * the camera produces that resolution by scaling the same sensor area vertically and
+     * cropping or extending it horizontally, around the same center, which is only roughly
+     * true of most webcams.
+     *
+     * @param newWidth the width being approximated
+     * @param newHeight the height being approximated
+     * @return the approximated intrinsics
+     */
+    public CameraIntrinsics approximatedTo(int newWidth, int newHeight)
+    {
+        // Pixels stay square, so both axes scale the same
+        double scale = (double) newHeight / height;
+
+        // Keep the principal point the same (scaled) distance from the center of the frame
+        return new CameraIntrinsics(camera, newWidth, newHeight,
+                fx * scale,
+                fy * scale,
+                (cx + 0.5 - width / 2.0) * scale + newWidth / 2.0 - 0.5,
+                (cy + 0.5 - height / 2.0) * scale + newHeight / 2.0 - 0.5);
+    }
+
+    private static String key(String camera, int width, int height)
+    {
+        return camera + "@" + width + "x" + height;
+    }
+}
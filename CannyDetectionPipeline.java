@@ -14,13 +14,24 @@ public class CannyDetectionPipeline extends OpenCvPipeline {
     
     private Telemetry t;
 
+    private StageTimer timer = new StageTimer("CannyDetectionPipeline");
+    private int cannyTimerStage = timer.addStage("canny");
+
     public CannyDetectionPipeline(Telemetry telemetry) {
         t = telemetry;
+        timer.publishTo(telemetry);
+    }
+
+    public StageTimer getStageTimer() {
+        return timer;
     }
 
     @Override
     public Mat processFrame(Mat input) {
+        timer.beginFrame();
         Imgproc.Canny(input, cannyMat, lower, higher);
+        timer.lap(cannyTimerStage);
+        timer.endFrame();
         return cannyMat;
     }
 }
\ No newline at end of file
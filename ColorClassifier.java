@@ -0,0 +1,92 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/*
+ * Builds a binary mask of the pixels of an RGB(A) frame that fall inside a color
+ * range, defined in whichever color space suits it.
+ *
+ * All the per-pixel work is left to OpenCV: a cvtColor() into the range's color
+ * space, then an inRange(). The range is only copied when it's set, so setRange()
+ * is cheap to call every frame (e.g. with values from EOCV-Sim's variable tuner).
+ *
+ * (This used to quantize RGB space into a lookup table applied in Java, labelling
+ * several classes at once. Reading the frame out of OpenCV and looping over it in
+ * Java made it about twice as slow as the cvtColor() + inRange() it replaced, it
+ * was inexact near the edges of a range, and no pipeline needed more than one
+ * class, so this is all that's left of it.)
+ */
+public final class ColorClassifier
+{
+    // Passing this as the conversion code means the range is in plain RGB
+    public static final int NO_CONVERSION = -1;
+
+    private int cvtCode = NO_CONVERSION;
+    private final Scalar lower = new Scalar(0, 0, 0, 0);
+    private final Scalar upper = new Scalar(0, 0, 0, 0);
+
+    // Scratch, reused between frames
+    private final Mat converted = new Mat();
+
+    /**
+     * Set (or change) the color range
+     *
+     * @param cvtCode the cvtColor() code from RGB to the space the range is in, or NO_CONVERSION
+     * @param lower the lower bound of the range, inclusive
+     * @param upper the upper bound of the range, inclusive
+     */
+    public void setRange(int cvtCode, Scalar lower, Scalar upper)
+    {
+        // RGBA->RGB is what pipelines use to mean "plain RGB"
+        this.cvtCode = cvtCode == Imgproc.COLOR_RGBA2RGB ? NO_CONVERSION : cvtCode;
+
+        // Only the first three channels are checked; an RGBA frame's alpha is dropped first
+        for(int c = 0; c < 3; c++)
+        {
+            this.lower.val[c] = lower.val[c];
+            this.upper.val[c] = upper.val[c];
+        }
+    }
+
+    /**
+     * Build a binary mask of the range, e.g. as a drop-in for cvtColor() + inRange()
+     *
+     * @param rgb the frame to classify
+     * @param maskOut a CV_8UC1 mask
+     * @param inValue the value of pixels in the range (255 for an inRange() style mask)
+     * @param outValue the value of every other pixel
+     */
+    public void classifyMask(Mat rgb, Mat maskOut, int inValue, int outValue)
+    {
+        int code = cvtCode;
+
+        if(code == NO_CONVERSION)
+        {
+            code = rgb.channels() == 4 ? Imgproc.COLOR_RGBA2RGB : -1;
+        }
+
+        Mat inSpace = rgb;
+
+        if(code >= 0)
+        {
+            Imgproc.cvtColor(rgb, converted, code);
+            inSpace = converted;
+        }
+
+        Core.inRange(inSpace, lower, upper, maskOut);
+
+        if(inValue != 255 || outValue != 0)
+        {
+            // inRange() gives 255 and 0; map those straight to inValue and outValue
+            maskOut.convertTo(maskOut, -1, (inValue - outValue) / 255.0, outValue);
+        }
+    }
+
+    public void release()
+    {
+        converted.release();
+    }
+}
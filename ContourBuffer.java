@@ -0,0 +1,483 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.opencv.core.CvType;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+
+/*
+ * A reusable store for a batch of contours, held as primitives.
+ *
+ * OpenCV hands contours back as MatOfPoint, and turning those into something we
+ * can loop over in Java (toArray(), toList(), fromList(), ...) allocates a Point
+ * object for every single point, every frame. Instead, all the points of all the
+ * contours live in one growable int[] of packed x,y pairs, with each contour
+ * being a range of it. Geometry we need is done directly on that array, and a
+ * contour is only turned back into a Mat right at the OpenCV call that needs it.
+ *
+ * Nothing is allocated in steady state; the arrays only ever grow.
+ *
+ * Reading a buffer (points, area, bounding boxes, splitting) from several threads
+ * at once is fine, but converting to a Mat uses the buffer's scratch space, so
+ * only one thread at a time may do that (or add to the buffer).
+ */
+public final class ContourBuffer
+{
+    // x0, y0, x1, y1, ... for every point of every contour
+    private int[] coords = new int[256];
+    private int numPoints = 0;
+
+    // Contour i is points [starts[i], starts[i+1])
+    private int[] starts = new int[17];
+    private int numContours = 0;
+    private boolean building = false;
+
+    // Scratch for converting to and from Mats. These can be longer than the Mat being read or
+    // written, since get() and put() stop at the end of the Mat.
+    private int[] intScratch = new int[0];
+    private float[] floatScratch = new float[0];
+
+    // Scratch for convexHull(): the points packed one per long, and the hull as it's built
+    private long[] sortedScratch = new long[0];
+    private long[] hullScratch = new long[0];
+
+    public void clear()
+    {
+        numPoints = 0;
+        numContours = 0;
+        building = false;
+    }
+
+    public int size()
+    {
+        return numContours;
+    }
+
+    public int pointCount(int contour)
+    {
+        return starts[contour+1] - starts[contour];
+    }
+
+    public int x(int contour, int point)
+    {
+        return coords[(starts[contour] + point) * 2];
+    }
+
+    public int y(int contour, int point)
+    {
+        return coords[(starts[contour] + point) * 2 + 1];
+    }
+
+    /**
+     * Copy a contour from OpenCV into the buffer
+     *
+     * @param contour the contour, as returned by findContours()
+     * @return the index of the new contour
+     */
+    public int add(MatOfPoint contour)
+    {
+        int count = (int) contour.total();
+        beginContour();
+        ensurePointCapacity(numPoints + count);
+
+        if(count > 0)
+        {
+            // A MatOfPoint is CV_32SC2, so it's already packed x,y pairs. get() always writes
+            // from the start of the array though, so it has to go through the scratch array.
+            ensureIntScratch(count * 2);
+            contour.get(0, 0, intScratch);
+            System.arraycopy(intScratch, 0, coords, numPoints * 2, count * 2);
+        }
+
+        numPoints += count;
+        return endContour();
+    }
+
+    /**
+     * Copy a contour from another buffer into this one
+     *
+     * @param other the buffer to copy from
+     * @param contour the index of the contour in that buffer
+     * @return the index of the new contour in this buffer
+     */
+    public int add(ContourBuffer other, int contour)
+    {
+        int count = other.pointCount(contour);
+        beginContour();
+        ensurePointCapacity(numPoints + count);
+        System.arraycopy(other.coords, other.starts[contour] * 2, coords, numPoints * 2, count * 2);
+        numPoints += count;
+        return endContour();
+    }
+
+    /*
+     * Start a new contour, to be filled with addPoint() and finished with endContour()
+     */
+    public void beginContour()
+    {
+        if(building)
+        {
+            throw new IllegalStateException("Already building a contour");
+        }
+
+        if(starts.length < numContours + 2)
+        {
+            int[] grown = new int[starts.length * 2];
+            System.arraycopy(starts, 0, grown, 0, numContours + 1);
+            starts = grown;
+        }
+
+        starts[numContours] = numPoints;
+        building = true;
+    }
+
+    public void addPoint(int x, int y)
+    {
+        ensurePointCapacity(numPoints + 1);
+        coords[numPoints*2] = x;
+        coords[numPoints*2+1] = y;
+        numPoints++;
+    }
+
+    /*
+     * Finish the contour started by beginContour(), returning its index
+     */
+    public int endContour()
+    {
+        if(!building)
+        {
+            throw new IllegalStateException("Not building a contour");
+        }
+
+        building = false;
+        starts[numContours+1] = numPoints;
+        return numContours++;
+    }
+
+    /*
+     * The area enclosed by a contour, using the shoelace formula. Gives the same
+     * result as Imgproc.contourArea() for a contour from findContours().
+     */
+    public double area(int contour)
+    {
+        int start = starts[contour];
+        int end = starts[contour+1];
+
+        if(end - start < 3)
+        {
+            return 0;
+        }
+
+        long twiceArea = 0;
+        int prevX = coords[(end-1)*2];
+        int prevY = coords[(end-1)*2+1];
+
+        for(int i = start; i < end; i++)
+        {
+            int x = coords[i*2];
+            int y = coords[i*2+1];
+            twiceArea += (long) prevX * y - (long) x * prevY;
+            prevX = x;
+            prevY = y;
+        }
+
+        return Math.abs(twiceArea) / 2.0;
+    }
+
+    /**
+     * The upright bounding box of a contour, as Imgproc.boundingRect() would give
+     *
+     * @param contour the contour to bound
+     * @param out receives x, y, width, height
+     */
+    public void boundingBox(int contour, int[] out)
+    {
+        int start = starts[contour];
+        int end = starts[contour+1];
+
+        if(end == start)
+        {
+            out[0] = out[1] = out[2] = out[3] = 0;
+            return;
+        }
+
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+
+        for(int i = start; i < end; i++)
+        {
+            int x = coords[i*2];
+            int y = coords[i*2+1];
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+        }
+
+        out[0] = minX;
+        out[1] = minY;
+        out[2] = maxX - minX + 1;
+        out[3] = maxY - minY + 1;
+    }
+
+    /*
+     * Multiply the coordinates of every point of every contour by a factor, e.g. to
+     * map contours found in a downscaled frame back to the full frame
+     */
+    public void scaleAll(int factor)
+    {
+        for(int i = 0; i < numPoints * 2; i++)
+        {
+            coords[i] *= factor;
+        }
+    }
+
+    /**
+     * Split a contour in two by a line through (cx, cy) with the given slope. Points for which
+     * cy - y > slope * (cx - x) go into the first region, and everything else into the second.
+     * Each region is appended to its buffer as a new contour (which may be empty); the two
+     * buffers may be the same, in which case the first region comes first.
+     *
+     * @param contour the contour to split
+     * @param cx x coordinate of a point on the line
+     * @param cy y coordinate of a point on the line
+     * @param slope the slope of the line
+     * @param above receives the first region
+     * @param below receives the second region
+     */
+    public void splitByLine(int contour, double cx, double cy, double slope, ContourBuffer above, ContourBuffer below)
+    {
+        int start = starts[contour];
+        int end = starts[contour+1];
+
+        // One region after the other, so both can go into the same buffer
+        above.beginContour();
+
+        for(int i = start; i < end; i++)
+        {
+            int x = coords[i*2];
+            int y = coords[i*2+1];
+
+            if(cy - y > slope * (cx - x))
+            {
+                above.addPoint(x, y);
+            }
+        }
+
+        above.endContour();
+        below.beginContour();
+
+        for(int i = start; i < end; i++)
+        {
+            int x = coords[i*2];
+            int y = coords[i*2+1];
+
+            if(!(cy - y > slope * (cx - x)))
+            {
+                below.addPoint(x, y);
+            }
+        }
+
+        below.endContour();
+    }
+
+    /**
+     * Compute the convex hull of a contour with Andrew's monotone chain, and append it
+     * to a buffer as a new contour. Points which lie along an edge of the hull are left
+     * out, so the hull encloses exactly the same area as Imgproc.convexHull() would give.
+     * An empty contour gives an empty hull. Uses this buffer's scratch space, like toMat().
+     *
+     * @param contour the contour to compute the hull of
+     * @param out the buffer to append the hull to; may be this buffer
+     * @return the index of the hull in out
+     */
+    public int convexHull(int contour, ContourBuffer out)
+    {
+        int count = pointCount(contour);
+        int start = starts[contour];
+
+        if(sortedScratch.length < count)
+        {
+            sortedScratch = new long[Math.max(count, sortedScratch.length * 2)];
+            hullScratch = new long[sortedScratch.length * 2];
+        }
+
+        // Pack each point into a long such that sorting the longs sorts the points by x, then y.
+        // Image coordinates are never negative, so y can go in the low half as-is.
+        for(int i = 0; i < count; i++)
+        {
+            sortedScratch[i] = ((long) coords[(start+i)*2] << 32) | (coords[(start+i)*2+1] & 0xFFFFFFFFL);
+        }
+
+        heapSort(sortedScratch, count);
+
+        int hullSize = 0;
+
+        if(count == 1)
+        {
+            hullScratch[hullSize++] = sortedScratch[0];
+        }
+        else if(count > 1)
+        {
+            // Lower hull, left to right
+            for(int i = 0; i < count; i++)
+            {
+                while(hullSize >= 2 && cross(hullScratch[hullSize-2], hullScratch[hullSize-1], sortedScratch[i]) <= 0)
+                {
+                    hullSize--;
+                }
+
+                hullScratch[hullSize++] = sortedScratch[i];
+            }
+
+            // Upper hull, right to left
+            int lowerSize = hullSize + 1;
+
+            for(int i = count - 2; i >= 0; i--)
+            {
+                while(hullSize >= lowerSize && cross(hullScratch[hullSize-2], hullScratch[hullSize-1], sortedScratch[i]) <= 0)
+                {
+                    hullSize--;
+                }
+
+                hullScratch[hullSize++] = sortedScratch[i];
+            }
+
+            // The last point is the first point again
+            hullSize--;
+        }
+
+        out.beginContour();
+
+        for(int i = 0; i < hullSize; i++)
+        {
+            out.addPoint((int) (hullScratch[i] >> 32), (int) hullScratch[i]);
+        }
+
+        return out.endContour();
+    }
+
+    /*
+     * The z component of (b - a) x (c - a), for points packed as in convexHull()
+     */
+    private static long cross(long a, long b, long c)
+    {
+        long ax = a >> 32, ay = (int) a;
+        long bx = b >> 32, by = (int) b;
+        long cx = c >> 32, cy = (int) c;
+        return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+    }
+
+    /*
+     * Arrays.sort() may allocate a work array for long inputs, so sort in place ourselves
+     */
+    private static void heapSort(long[] a, int n)
+    {
+        for(int i = n / 2 - 1; i >= 0; i--)
+        {
+            siftDown(a, i, n);
+        }
+
+        for(int end = n - 1; end > 0; end--)
+        {
+            long tmp = a[0];
+            a[0] = a[end];
+            a[end] = tmp;
+            siftDown(a, 0, end);
+        }
+    }
+
+    private static void siftDown(long[] a, int i, int n)
+    {
+        long value = a[i];
+
+        while(true)
+        {
+            int child = i * 2 + 1;
+
+            if(child >= n)
+            {
+                break;
+            }
+
+            if(child + 1 < n && a[child+1] > a[child])
+            {
+                child++;
+            }
+
+            if(a[child] <= value)
+            {
+                break;
+            }
+
+            a[i] = a[child];
+            i = child;
+        }
+
+        a[i] = value;
+    }
+
+    /**
+     * Write a contour into a MatOfPoint, e.g. for drawContours() or convexHull()
+     *
+     * @param contour the contour to convert
+     * @param dst the Mat to write to; reused if it's already big enough
+     */
+    public void toMat(int contour, MatOfPoint dst)
+    {
+        int count = pointCount(contour);
+        dst.create(count, 1, CvType.CV_32SC2);
+
+        if(count > 0)
+        {
+            ensureIntScratch(count * 2);
+            System.arraycopy(coords, starts[contour] * 2, intScratch, 0, count * 2);
+            dst.put(0, 0, intScratch);
+        }
+    }
+
+    /**
+     * Write a contour into a MatOfPoint2f, e.g. for minAreaRect()
+     *
+     * @param contour the contour to convert
+     * @param dst the Mat to write to; reused if it's already big enough
+     */
+    public void toMat(int contour, MatOfPoint2f dst)
+    {
+        int count = pointCount(contour);
+        int start = starts[contour];
+        dst.create(count, 1, CvType.CV_32FC2);
+
+        if(floatScratch.length < count * 2)
+        {
+            floatScratch = new float[Math.max(count * 2, floatScratch.length * 2)];
+        }
+
+        for(int i = 0; i < count * 2; i++)
+        {
+            floatScratch[i] = coords[start*2 + i];
+        }
+
+        if(count > 0)
+        {
+            dst.put(0, 0, floatScratch);
+        }
+    }
+
+    private void ensureIntScratch(int length)
+    {
+        if(intScratch.length < length)
+        {
+            intScratch = new int[Math.max(length, intScratch.length * 2)];
+        }
+    }
+
+    private void ensurePointCapacity(int points)
+    {
+        if(coords.length < points * 2)
+        {
+            int[] grown = new int[Math.max(points * 2, coords.length * 2)];
+            System.arraycopy(coords, 0, grown, 0, numPoints * 2);
+            coords = grown;
+        }
+    }
+}
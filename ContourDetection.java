@@ -7,7 +7,6 @@ import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.Point;
 import org.opencv.core.CvType;
-import org.opencv.core.Size;
 import org.opencv.core.Core;
 import org.opencv.core.RotatedRect;
 import org.opencv.core.Rect;
@@ -24,204 +23,414 @@ public class ContourDetection extends OpenCvPipeline {
     public static int binaryLower;
     public static int binaryHigher = 255;
     public static int channelSwitch;
+    public static int maxContours = 8; //How many of the largest contours to keep each frame
+    public static int downscale = 1; //Find contours in a frame shrunk by this much (1, 2, 4 or 8)
+    public static boolean useBlobs = false; //Measure blobs with connected components instead of tracing contours
+    public static int minBlobArea = 0; //Ignore blobs smaller than this, in full frame pixels
 
     //Scalars
     public static Scalar lower = new Scalar(17, 72, 144.5);
     public static Scalar upper = new Scalar(51, 255, 255);
     private final Scalar color = new Scalar(255, 0, 255);
 
-    private static List<Mat> channels = new ArrayList<>();
+    private static final Scalar BLACK = new Scalar(0, 0, 0);
+    private static final Point NO_OFFSET = new Point();
     
-    //Mats
-    private Mat kernel;
+    //Mats. These are all allocated once (per frame size) and reused every frame; nothing is
+    //released between frames, since that would just force the next frame to re-allocate it.
     private Mat grayMat = new Mat();
     private Mat hsvMat = new Mat();
     private Mat thresholdMat_AllContours = new Mat();
     private Mat thresholdMat_MaxContours = new Mat();
     private Mat thresholdMat_BoundingRects = new Mat();
-    private Mat thresholdGrayMat = new Mat();
     private Mat maskMat = new Mat();
+    private Mat contourBinary = new Mat();
+    private Mat thresholdBinary = new Mat();
+    private Mat hierarchy = new Mat();
+    private Mat thresholdHierarchy = new Mat();
+    private MatOfPoint2f contour2f = new MatOfPoint2f();
 
+    //Does the HSV conversion, the range check and the binary threshold in one classification
+    private final ColorClassifier classifier = new ColorClassifier();
+    private final Scalar classifierLower = new Scalar(0, 0, 0);
+
+    //Closes small gaps in the binary mask, with native morphology on the mask only (see BinaryMorphology)
+    private static final int CLOSE_KERNEL_SIZE = 3;
+    private final BinaryMorphology closing = new BinaryMorphology();
+    private int closingFactor = -1;
+
+    //Shrinks the frame for classification and contour finding; results are mapped back to the full frame
+    private final FrameScaler scaler = new FrameScaler();
+
+    //Used instead of contours when useBlobs is set
+    private final BlobDetector blobs = new BlobDetector();
+    private boolean blobsThisFrame;
+    private final Point blobTopLeft = new Point();
+    private final Point blobBottomRight = new Point();
+
+    //Contour lists, recycled between frames
+    private final List<MatOfPoint> contours = new ArrayList<>();
+    private final List<MatOfPoint> thresholdContours = new ArrayList<>(); //Largest first
+    private final List<MatOfPoint> foundContours = new ArrayList<>();
+    private final Point[] vertices = new Point[4];
+
+
+    //Min-heap of the largest contours found so far, as indices into foundContours
+    private int[] heapIndices = new int[0];
+    private double[] heapAreas = new double[0];
 
-    private double area;
     private double maxArea = 0;
     private int maxIndex = -1;
     private int processingState = 1;
 
     private Telemetry t;
+    private TelemetryPublisher.Section telemetrySection;
+    private TelemetryPublisher.Field maxAreaTelemetry;
+
+    //Stages. Each frame, only the stages needed for the analysis and the one being shown get run.
+    private final StageGraph graph = new StageGraph();
+    private final StageGraph.Stage morphStage;
+    private final StageGraph.Stage thresholdHsvStage;
+    private final StageGraph.Stage classifyStage;
+    private final StageGraph.Stage grayContoursStage;
+    private final StageGraph.Stage grayOverlayStage;
+    private final StageGraph.Stage hsvOverlayStage;
+    private final StageGraph.Stage thresholdContoursStage;
+    private final StageGraph.Stage allContoursStage;
+    private final StageGraph.Stage maxContoursStage;
+    private final StageGraph.Stage boundingRectsStage;
+    private Mat input;
+
+    //Times every stage the graph runs, when StageTimer.enabled is set
+    private final StageTimer timer = new StageTimer("ContourDetection");
 
     public ContourDetection(Telemetry telemetry) {
         t = telemetry;
+        telemetrySection = TelemetryPublisher.get(telemetry).addSection();
+        maxAreaTelemetry = telemetrySection.addNumber("Maximum contour area: ", 2);
+
+        thresholdHsvStage = graph.add("thresholdHSV", () -> thresholdHSV(input), thresholdMat_AllContours);
+        grayContoursStage = graph.add("grayContours", this::findGrayContours, grayMat);
+        grayOverlayStage = graph.add("grayOverlay", this::drawGrayContours, grayMat, grayContoursStage);
+        hsvOverlayStage = graph.add("hsvOverlay", this::drawHsvContours, hsvMat, grayContoursStage, thresholdHsvStage);
+        classifyStage = graph.add("classify", this::classify, thresholdBinary);
+        morphStage = graph.add("morph", this::applyMorphology, thresholdBinary, classifyStage);
+        thresholdContoursStage = graph.add("thresholdContours", this::findThresholdContours, null, morphStage);
+        allContoursStage = graph.add("allContours", this::drawAllContours, thresholdMat_AllContours, thresholdContoursStage, thresholdHsvStage);
+        maxContoursStage = graph.add("maxContours", this::drawMaxContour, thresholdMat_MaxContours, thresholdContoursStage, thresholdHsvStage);
+        boundingRectsStage = graph.add("boundingRects", this::drawBoundingRects, thresholdMat_BoundingRects, thresholdContoursStage, thresholdHsvStage);
+
+        graph.setTimer(timer);
+        timer.publishTo(telemetry);
+    }
+
+    public StageTimer getStageTimer() {
+        return timer;
     }
 
     @Override
     public Mat processFrame(Mat input) {
         /*
-         * 
+         * Only the thresholded contours are needed for our actual analysis (the max area),
+         * everything else is purely for the viewport.
          */
-        
-        // 1. Apply morphology
-        kernel = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(3, 3));
-        Imgproc.morphologyEx(input, input, Imgproc.MORPH_CLOSE, kernel);
+        this.input = input;
+        timer.beginFrame();
+        graph.newFrame();
+        blobsThisFrame = useBlobs; //Read once, so the analysis and the drawing agree
+
+        graph.require(thresholdContoursStage);
+
+        maxAreaTelemetry.set(maxArea);
+        telemetrySection.commit();
+
+        //16. Return processed Mats. Everything else is kept around to be reused next frame.
+        StageGraph.Stage shown;
+        switch(channelSwitch) {
+            case 1:
+                shown = morphStage;
+                break;
+            case 2:
+                shown = grayOverlayStage;
+                break;
+            case 3:
+                shown = hsvOverlayStage;
+                break;
+            case 5:
+                shown = maxContoursStage;
+                break;
+            case 6:
+                shown = boundingRectsStage;
+                break;
+            case 4:
+            default:
+                shown = allContoursStage;
+                break;
+        }
+
+        Mat output = graph.require(shown);
+        timer.endFrame();
+        return output;
+    }
 
-        // 2. Apply the threshold to the HSV mat
-        thresholdHSV(input);
+    private void applyMorphology() {
+        //Apply morphology (a closing) to the binary mask, rather than to every channel of the full color frame.
+        //The kernel is sized for the full frame, so shrink it along with the frame
+        if(closingFactor != scaler.getFactor()) {
+            closingFactor = scaler.getFactor();
+            int size = scaler.toScaled(CLOSE_KERNEL_SIZE);
+            closing.clear();
+            closing.close(size, size, 1);
+        }
+        closing.apply(thresholdBinary, thresholdBinary);
+    }
 
+    private void findGrayContours() {
         // 3. Convert the input Mat to grayscale
         Imgproc.cvtColor(input, grayMat, Imgproc.COLOR_RGB2GRAY);
         
         // 4. Conver the input Mat to binary
-        Mat contourBinary = new Mat(input.rows(), input.cols(), input.type(), new Scalar(0));
         Imgproc.threshold(grayMat, contourBinary, binaryLower, binaryHigher, Imgproc.THRESH_BINARY_INV);
         
-        // 5. Create an ArrayList storing all of the contours in the binary input Mat
-        List<MatOfPoint> contours = new ArrayList<>();
-        Mat hierarchy = new Mat();
+        // 5. Free last frame's contours now, rather than leaving their native memory for the GC
+        releaseContours(contours);
         
-        // 6. Finding/drawing contours on both the grayscale and HSV Mats
+        // 6. Finding contours in the grayscale Mat
         Imgproc.findContours(contourBinary, contours, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
-        Imgproc.drawContours(grayMat, contours, -1, color, 2, Imgproc.LINE_8, hierarchy, 2, new Point());
-        Imgproc.drawContours(hsvMat, contours, -1, color, 2, Imgproc.LINE_8, hierarchy, 2, new Point());
+    }
 
+    private void drawGrayContours() {
+        Imgproc.drawContours(grayMat, contours, -1, color, 2, Imgproc.LINE_8, hierarchy, 2, NO_OFFSET);
+    }
 
+    private void drawHsvContours() {
+        Imgproc.drawContours(hsvMat, contours, -1, color, 2, Imgproc.LINE_8, hierarchy, 2, NO_OFFSET);
+    }
 
-        // 7. Extract the V channel from the thresholded HSV Mat
-        Core.split(thresholdMat_AllContours, channels); //At this point, thresholdMat_AllContours has no contours drawn on it, it's just the thresholded HSV Mat
-        thresholdGrayMat = channels.get(2); //Thresholded grayscale Mat
+    private void classify() {
+        //7. A pixel is one we're after only if it's both inside the HSV range and brighter than binaryLower.
+        //That's just another HSV range, so fold the brightness check into the range's lower V bound.
+        classifierLower.val[0] = lower.val[0];
+        classifierLower.val[1] = lower.val[1];
+        classifierLower.val[2] = Math.max(lower.val[2], binaryLower + 1);
+        classifier.setRange(Imgproc.COLOR_RGB2HSV, classifierLower, upper);
 
-        //8. Convert the thresholded HSV mat to binary
-        contourBinary = new Mat(thresholdMat_AllContours.rows(), thresholdMat_AllContours.cols(), thresholdMat_AllContours.type(), new Scalar(0));
-        Imgproc.threshold(thresholdGrayMat, contourBinary, binaryLower, binaryHigher, Imgproc.THRESH_BINARY_INV);
-        
-        //9. Create another ArrayList storing the contours detected in the thresholded Mat
-        List<MatOfPoint> thresholdContours = new ArrayList<>();
-        Mat thresholdHierarchy = new Mat();
+        //8. Convert the (possibly downscaled) input straight to the binary Mat, without ever building the HSV Mats (those are only for the viewport now)
+        //The pixels we're after are the foreground (non-zero) of the binary Mat, rather than the holes in it.
+        scaler.setFactor(downscale);
+        classifier.classifyMask(scaler.downscale(input), thresholdBinary, binaryHigher, 0);
+    }
 
-        //10. Find and store contours detected in thresholded Mat
-        Imgproc.findContours(contourBinary, thresholdContours, thresholdHierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
-        
-        //11. Make the MaxContours and BoundingRects Mats match the AllContours Mat
-        thresholdMat_MaxContours = thresholdMat_AllContours.clone();
-        thresholdMat_BoundingRects = thresholdMat_AllContours.clone();
-        
-        //12. For loop identifying the contour of the greatest area
-        for(int i = 0; i < thresholdContours.size(); i++) { //Can't be a foreach loop since foreach elements are immutable
-            MatOfPoint contour = thresholdContours.get(i);
-            area = Imgproc.contourArea(contour);
-            if (area > maxArea) {
-                maxArea = area;
-                maxIndex = i;
+    private void findThresholdContours() {
+        //9. Free last frame's thresholded contours
+        releaseContours(thresholdContours);
+
+        if(blobsThisFrame) {
+            findBlobs();
+            return;
+        }
+
+        //10. Find the outer contours of the in-range regions. Nothing needs the hierarchy, so don't ask for one, and
+        //since the in-range pixels are the foreground, there's no contour around the border of the image to get rid of.
+        Imgproc.findContours(thresholdBinary, foundContours, thresholdHierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+
+        //11. Keep only the largest contours in a min-heap, in a single pass, releasing the rest straight away.
+        //maxContours can be changed from the tuner at any time, so read it once, and never as a negative size.
+        int keep = Math.max(0, maxContours);
+
+        if(heapIndices.length != keep) {
+            heapIndices = new int[keep];
+            heapAreas = new double[keep];
+        }
+
+        int heapSize = 0;
+        int frameWidth = thresholdBinary.cols();
+        int frameHeight = thresholdBinary.rows();
+
+        for(int i = 0; i < foundContours.size(); i++) {
+            double area = Imgproc.contourArea(foundContours.get(i));
+
+            if(heapSize == keep && (heapSize == 0 || area <= heapAreas[0])) {
+                foundContours.get(i).release();
+                continue;
+            }
+
+            //If everything is in range, the only contour is the border of the image; that's not an object
+            Rect bounds = Imgproc.boundingRect(foundContours.get(i));
+            if(bounds.width >= frameWidth && bounds.height >= frameHeight) {
+                foundContours.get(i).release();
+                continue;
             }
+
+            if(heapSize == keep) {
+                //Evict the smallest survivor
+                foundContours.get(heapIndices[0]).release();
+                heapIndices[0] = i;
+                heapAreas[0] = area;
+                siftDown(0, heapSize);
+            } else {
+                heapIndices[heapSize] = i;
+                heapAreas[heapSize] = area;
+                siftUp(heapSize++);
+            }
+        }
+
+        //12. Pop the survivors smallest first, filling the list from the back so it ends up largest first
+        for(int i = 0; i < heapSize; i++) {
+            thresholdContours.add(null);
+        }
+
+        maxArea = 0;
+        for(int remaining = heapSize; remaining > 0; remaining--) {
+            maxArea = heapAreas[0]; //The last one popped is the largest
+            thresholdContours.set(remaining - 1, foundContours.get(heapIndices[0]));
+            heapIndices[0] = heapIndices[remaining - 1];
+            heapAreas[0] = heapAreas[remaining - 1];
+            siftDown(0, remaining - 1);
+        }
+
+        foundContours.clear();
+
+        //If they were found in a downscaled frame, map the survivors (and only those) back to the full frame
+        for(MatOfPoint contour : thresholdContours) {
+            scaler.toFull(contour);
         }
+        maxArea = scaler.toFullArea(maxArea);
+
+        //13. The largest contour is now simply the first one
+        maxIndex = thresholdContours.isEmpty() ? -1 : 0;
+    }
+
+    private void findBlobs() {
+        //10-13, as blobs. Every blob is measured in the one labeling pass, so there's no outline to trace or heap to keep;
+        //the area filter is in downscaled pixels, if the frame was downscaled.
+        blobs.setAreaLimits((int) Math.ceil(minBlobArea / scaler.toFullArea(1)), Integer.MAX_VALUE);
+        blobs.detect(thresholdBinary);
 
-        //13. Resets the value of the maxArea and removes the contour of largest area. By default, the largest contour will be the border of the image, so by removing it from the
-        //contours ArrayList this allows us to focus on the other contours inside the image.
+        maxIndex = -1;
         maxArea = 0;
-        thresholdContours.remove(maxIndex);
-
-        //14. Identifies the new largest contour inside the Mat and draws BoundedRects (as a series of 4 lines) on the BoundedRects Mat
-        for(int i = 0; i < thresholdContours.size(); i++) {
-            MatOfPoint contour = thresholdContours.get(i);
-            area = Imgproc.contourArea(contour);
-            if (area > maxArea) {
-                maxArea = area;
+        for(int i = 0; i < blobs.count(); i++) {
+            //If everything is in range, the only blob is the whole image; that's not an object
+            if(blobs.width(i) >= thresholdBinary.cols() && blobs.height(i) >= thresholdBinary.rows()) {
+                continue;
+            }
+            if(maxIndex < 0 || blobs.area(i) > blobs.area(maxIndex)) {
                 maxIndex = i;
             }
-            MatOfPoint2f temp = new MatOfPoint2f(contour.toArray());
-            
-            RotatedRect r =  Imgproc.minAreaRect(temp);
-            Point vertices[] = new Point[4];
-            r.points(vertices);
+        }
 
-            for(int j = 0; j < 4; j++) {
-                Imgproc.line(thresholdMat_BoundingRects, vertices[j], vertices[(j+1) % 4], color, 2);
+        if(maxIndex >= 0) {
+            maxArea = scaler.toFullArea(blobs.area(maxIndex));
+        }
+    }
+
+    private void drawBlob(Mat mat, int blob) {
+        //Blobs were found in the (possibly downscaled) binary Mat, so map their boxes back to the full frame
+        blobTopLeft.x = scaler.toFull(blobs.left(blob));
+        blobTopLeft.y = scaler.toFull(blobs.top(blob));
+        blobBottomRight.x = scaler.toFull(blobs.left(blob) + blobs.width(blob)) - 1;
+        blobBottomRight.y = scaler.toFull(blobs.top(blob) + blobs.height(blob)) - 1;
+        Imgproc.rectangle(mat, blobTopLeft, blobBottomRight, color, 2);
+    }
+
+    private void siftUp(int i) {
+        while(i > 0) {
+            int parent = (i - 1) / 2;
+            if(heapAreas[parent] <= heapAreas[i]) {
+                return;
             }
-            temp.release();
+            swapHeap(i, parent);
+            i = parent;
         }
+    }
+
+    private void siftDown(int i, int size) {
+        while(true) {
+            int smallest = i;
+            int left = 2*i + 1;
+            int right = left + 1;
+            if(left < size && heapAreas[left] < heapAreas[smallest]) {
+                smallest = left;
+            }
+            if(right < size && heapAreas[right] < heapAreas[smallest]) {
+                smallest = right;
+            }
+            if(smallest == i) {
+                return;
+            }
+            swapHeap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swapHeap(int a, int b) {
+        int index = heapIndices[a];
+        heapIndices[a] = heapIndices[b];
+        heapIndices[b] = index;
+        double area = heapAreas[a];
+        heapAreas[a] = heapAreas[b];
+        heapAreas[b] = area;
+    }
 
-        //15. Draws contours on the AllContours and MaxContours Mat
+    //14. Draws contours on the AllContours and MaxContours Mats. Note that the MaxContours and BoundingRects
+    //stages copy from the AllContours Mat, so they must never be required after AllContours in the same frame.
+    //Blobs have no outline, so their bounding boxes are drawn instead.
+    private void drawAllContours() {
+        if(blobsThisFrame) {
+            for(int i = 0; i < blobs.count(); i++) {
+                drawBlob(thresholdMat_AllContours, i);
+            }
+            return;
+        }
         Imgproc.drawContours(thresholdMat_AllContours, thresholdContours, -1, color, 2);
+    }
+
+    private void drawMaxContour() {
+        thresholdMat_AllContours.copyTo(thresholdMat_MaxContours);
+        if(blobsThisFrame) {
+            if(maxIndex >= 0) {
+                drawBlob(thresholdMat_MaxContours, maxIndex);
+            }
+            return;
+        }
         Imgproc.drawContours(thresholdMat_MaxContours, thresholdContours, maxIndex, color, 2);
+    }
 
-        t.addData("Maximum contour area: ", maxArea);
-        t.update();
+    //15. Draws BoundedRects (as a series of 4 lines) on the BoundedRects Mat. Only the largest contours survive
+    //step 11, so minAreaRect is never run on the clutter.
+    private void drawBoundingRects() {
+        thresholdMat_AllContours.copyTo(thresholdMat_BoundingRects);
 
-        //16. Return processed Mats. All unreturned Mats are released to keep memory clean.
-        switch(channelSwitch) {
-            case 1:
-                kernel.release();
-                grayMat.release();
-                hsvMat.release();
-                thresholdMat_AllContours.release();
-                thresholdMat_MaxContours.release();
-                thresholdMat_BoundingRects.release();
-                thresholdGrayMat.release();
-                maskMat.release();
-                
-                return input;
-            case 2:
-                kernel.release();
-                input.release();
-                hsvMat.release();
-                thresholdMat_AllContours.release();
-                thresholdMat_MaxContours.release();
-                thresholdMat_BoundingRects.release();
-                thresholdGrayMat.release();
-                maskMat.release();    
-                
-                return grayMat;
-            case 3:
-                kernel.release();
-                grayMat.release();
-                input.release();
-                thresholdMat_AllContours.release();
-                thresholdMat_MaxContours.release();
-                thresholdMat_BoundingRects.release();
-                thresholdGrayMat.release();
-                maskMat.release();
-                
-                return hsvMat;
-            case 5:
-                kernel.release();
-                grayMat.release();
-                hsvMat.release();
-                input.release();
-                thresholdMat_AllContours.release();
-                thresholdMat_BoundingRects.release();
-                thresholdGrayMat.release();
-                maskMat.release();
-
-                return thresholdMat_MaxContours;
-            case 6:
-                kernel.release();
-                grayMat.release();
-                hsvMat.release();
-                input.release();
-                thresholdMat_AllContours.release();
-                thresholdMat_MaxContours.release();
-                thresholdGrayMat.release();
-                maskMat.release();
-
-                return thresholdMat_BoundingRects;
-            case 4:
-            default:
-                kernel.release();
-                grayMat.release();
-                hsvMat.release();
-                input.release();
-                thresholdGrayMat.release();
-                thresholdMat_MaxContours.release();
-                thresholdMat_BoundingRects.release();
-                maskMat.release();
-                
-                return thresholdMat_AllContours;
+        for(int i = 0; blobsThisFrame && i < blobs.count(); i++) {
+            drawBlob(thresholdMat_BoundingRects, i);
+        }
+
+        for(MatOfPoint contour : thresholdContours) {
+            contour.convertTo(contour2f, CvType.CV_32F);
+            
+            RotatedRect r =  Imgproc.minAreaRect(contour2f);
+            r.points(vertices);
+
+            for(int j = 0; j < 4; j++) {
+                Imgproc.line(thresholdMat_BoundingRects, vertices[j], vertices[(j+1) % 4], color, 2);
+            }
         }
     }
 
     private void thresholdHSV(Mat input) {
         Imgproc.cvtColor(input, hsvMat, Imgproc.COLOR_RGB2HSV);
         Core.inRange(hsvMat, lower, upper, maskMat);
-        thresholdMat_AllContours.release();
-        Core.bitwise_and(hsvMat, hsvMat, thresholdMat_AllContours, maskMat);
+
+        //Only the in-range pixels get copied, so clear out last frame's first
+        thresholdMat_AllContours.create(hsvMat.rows(), hsvMat.cols(), hsvMat.type());
+        thresholdMat_AllContours.setTo(BLACK);
+        hsvMat.copyTo(thresholdMat_AllContours, maskMat);
+    }
+
+    private static void releaseContours(List<MatOfPoint> contours) {
+        for(MatOfPoint contour : contours) {
+            contour.release();
+        }
+        contours.clear();
     }
 }
\ No newline at end of file
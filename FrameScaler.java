@@ -0,0 +1,157 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.RotatedRect;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+
+/*
+ * Downscales frames for processing, and maps results back to the full frame.
+ *
+ * Blob pipelines (stones, props, ...) are looking for objects dozens of pixels
+ * across, which survive being shrunk just fine. Thresholding, morphology and
+ * contour finding at half the width and height touch a quarter of the pixels.
+ *
+ * Shrinking is done with pyrDown(), one level per halving, into buffers that are
+ * reused every frame. pyrDown() blurs before it drops pixels, which also takes
+ * care of some of the noise a threshold would otherwise pick up. A pixel (x, y)
+ * at a scale factor of f came from (x*f, y*f) in the full frame.
+ */
+public final class FrameScaler
+{
+    private int factor = 1;
+    private int levels = 0;
+
+    // One buffer per pyramid level, reused every frame
+    private final ArrayList<Mat> pyramid = new ArrayList<>();
+
+    public FrameScaler()
+    {
+    }
+
+    /**
+     * @param factor how much to shrink frames by; see setFactor()
+     */
+    public FrameScaler(int factor)
+    {
+        setFactor(factor);
+    }
+
+    /**
+     * @param factor how much to shrink each side of the frame by: 1 (don't), 2, 4 or 8
+     * @throws IllegalArgumentException if the factor isn't one of those
+     */
+    public void setFactor(int factor)
+    {
+        checkFactor(factor);
+        this.factor = factor;
+        levels = Integer.numberOfTrailingZeros(factor);
+
+        while(pyramid.size() < levels)
+        {
+            pyramid.add(new Mat());
+        }
+    }
+
+    /**
+     * @param factor a scale factor to validate
+     * @throws IllegalArgumentException if the factor isn't 1, 2, 4 or 8
+     */
+    public static void checkFactor(int factor)
+    {
+        if(factor != 1 && factor != 2 && factor != 4 && factor != 8)
+        {
+            throw new IllegalArgumentException("Scale factor must be 1, 2, 4 or 8");
+        }
+    }
+
+    public int getFactor()
+    {
+        return factor;
+    }
+
+    /**
+     * Shrink a frame by the scale factor
+     *
+     * @param full the full size frame
+     * @return the shrunk frame, which is owned by this scaler and overwritten on the next call;
+     *         or the frame itself if the scale factor is 1
+     */
+    public Mat downscale(Mat full)
+    {
+        Mat level = full;
+
+        for(int i = 0; i < levels; i++)
+        {
+            Imgproc.pyrDown(level, pyramid.get(i));
+            level = pyramid.get(i);
+        }
+
+        return level;
+    }
+
+    public double toFull(double coordinate)
+    {
+        return coordinate * factor;
+    }
+
+    public double toFullArea(double area)
+    {
+        return area * factor * factor;
+    }
+
+    /*
+     * Map a contour found in a downscaled frame to the full frame, in place
+     */
+    public void toFull(MatOfPoint contour)
+    {
+        if(factor != 1)
+        {
+            contour.convertTo(contour, -1, factor);
+        }
+    }
+
+    /*
+     * Map every contour in a buffer found in a downscaled frame to the full frame, in place
+     */
+    public void toFull(ContourBuffer contours)
+    {
+        if(factor != 1)
+        {
+            contours.scaleAll(factor);
+        }
+    }
+
+    /*
+     * Map a rotated rect found in a downscaled frame to the full frame, in place.
+     * The scale is the same in x and y, so the angle doesn't change.
+     */
+    public void toFull(RotatedRect rect)
+    {
+        rect.center.x *= factor;
+        rect.center.y *= factor;
+        rect.size.width *= factor;
+        rect.size.height *= factor;
+    }
+
+    /**
+     * Scale a structuring element size for use on the downscaled frame
+     *
+     * @param fullSize the size which would be used on the full frame
+     * @return the equivalent size on the downscaled frame, never less than 1
+     */
+    public int toScaled(int fullSize)
+    {
+        return Math.max(1, Math.round((float) fullSize / factor));
+    }
+
+    public void release()
+    {
+        for(Mat level : pyramid)
+        {
+            level.release();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.firstinspires.ftc.teamcode;
+
+/*
+ * A fixed-size histogram of latencies, for percentiles without keeping every sample.
+ *
+ * Latencies are counted in microsecond buckets. Below 32us every microsecond has its
+ * own bucket; above that, each power of two is split into 16 buckets, so a bucket is
+ * never more than about 6% wide. The buckets are allocated once, up front, and cover
+ * everything up to about 17 minutes (anything longer lands in the last bucket), so
+ * recording a sample is a few shifts and an increment.
+ *
+ * Only one thread may record into a histogram. Reading it from another thread while
+ * it's being recorded into gives approximate results.
+ */
+public final class LatencyHistogram
+{
+    private static final int LINEAR_BUCKETS = 32;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MSB = 29;
+    static final int NUM_BUCKETS = (MAX_MSB - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final long[] counts = new long[NUM_BUCKETS];
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    public void record(long nanos)
+    {
+        if(nanos < 0)
+        {
+            nanos = 0;
+        }
+
+        counts[bucketOf(nanos / 1000)]++;
+        count++;
+        totalNanos += nanos;
+
+        if(nanos > maxNanos)
+        {
+            maxNanos = nanos;
+        }
+    }
+
+    public void reset()
+    {
+        for(int i = 0; i < counts.length; i++)
+        {
+            counts[i] = 0;
+        }
+
+        count = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+    }
+
+    public long getCount()
+    {
+        return count;
+    }
+
+    // UNITS ARE MILLISECONDS
+    public double getMeanMillis()
+    {
+        return count == 0 ? 0 : totalNanos / 1e6 / count;
+    }
+
+    // UNITS ARE MILLISECONDS; exact, rather than bucketed
+    public double getMaxMillis()
+    {
+        return maxNanos / 1e6;
+    }
+
+    /**
+     * Estimate a percentile from the buckets, as the middle of the bucket it falls in
+     *
+     * @param fraction which percentile, e.g. 0.95 for the 95th
+     * @return the latency, in milliseconds, or 0 if nothing has been recorded
+     */
+    public double getPercentileMillis(double fraction)
+    {
+        if(count == 0)
+        {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+
+        for(int bucket = 0; bucket < counts.length; bucket++)
+        {
+            seen += counts[bucket];
+
+            if(seen >= rank)
+            {
+                double middleMicros = (bucketLowerMicros(bucket) + bucketUpperMicros(bucket)) / 2.0;
+
+                // The bucket can reach past the largest sample actually seen
+                return Math.min(middleMicros / 1000, getMaxMillis());
+            }
+        }
+
+        return getMaxMillis();
+    }
+
+    public int getNumBuckets()
+    {
+        return counts.length;
+    }
+
+    public long getBucketCount(int bucket)
+    {
+        return counts[bucket];
+    }
+
+    /*
+     * The smallest latency, in microseconds, which falls in a bucket
+     */
+    public static long bucketLowerMicros(int bucket)
+    {
+        if(bucket < LINEAR_BUCKETS)
+        {
+            return bucket;
+        }
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        int sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return (long) sub << shift;
+    }
+
+    /*
+     * The largest latency, in microseconds, which falls in a bucket
+     */
+    public static long bucketUpperMicros(int bucket)
+    {
+        if(bucket < LINEAR_BUCKETS)
+        {
+            return bucket;
+        }
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        return bucketLowerMicros(bucket) + (1L << shift) - 1;
+    }
+
+    static int bucketOf(long micros)
+    {
+        if(micros < LINEAR_BUCKETS)
+        {
+            return (int) micros;
+        }
+
+        int msb = 63 - Long.numberOfLeadingZeros(micros);
+
+        if(msb > MAX_MSB)
+        {
+            return NUM_BUCKETS - 1;
+        }
+
+        // The top SUB_BUCKET_BITS+1 bits of the value pick the bucket within its power of two
+        int shift = msb - SUB_BUCKET_BITS;
+        int sub = (int) (micros >> shift);
+        return (shift + 1) * SUB_BUCKETS + (sub - SUB_BUCKETS);
+    }
+}
@@ -0,0 +1,225 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+
+/*
+ * Averages the color of the input frame over a set of rectangular sample regions.
+ *
+ * Pipelines which only look at a few small regions of the frame used to convert
+ * the whole frame to another color space just to read a few hundred pixels of it.
+ * Instead, the RGB pixels of each region are averaged straight from the input,
+ * and the average converted afterwards. Y, Cr and Cb are linear in R, G and B,
+ * so the Cb of the average color is the average of the Cb of each pixel.
+ *
+ * If there are a lot of regions, or they overlap, the pixels they share would be
+ * read over and over again. In that case the sampler builds one integral image of
+ * the frame instead, from which the sum over any rectangle is just four lookups.
+ */
+public final class RegionSampler
+{
+    // With more regions than this, building an integral image is cheaper than reading each region
+    static final int INTEGRAL_IMAGE_REGION_COUNT = 8;
+
+    private static final int CHANNELS = 3;
+
+    private final ArrayList<Rect> regions = new ArrayList<>();
+    private boolean anyOverlap = false;
+
+    // The average of each channel of each region, from the last call to sample()
+    private double[] means = new double[0];
+
+    // Scratch, reused between frames. Each region gets its own row buffer, since get() reads
+    // as much as the array will hold and the regions can be different widths.
+    private final ArrayList<byte[]> rows = new ArrayList<>();
+    private final Mat integral = new Mat();
+    // One pixel of the integral image; sized to its channel count, since get() only accepts
+    // a whole number of pixels
+    private int[] corner = new int[0];
+
+    /**
+     * Add a region to sample
+     *
+     * @param region the region, which must lie within the frame
+     * @return the index of the region
+     */
+    public int addRegion(Rect region)
+    {
+        for(Rect other : regions)
+        {
+            anyOverlap |= region.x < other.x + other.width && other.x < region.x + region.width
+                    && region.y < other.y + other.height && other.y < region.y + region.height;
+        }
+
+        regions.add(region.clone());
+        rows.add(new byte[0]);
+        means = new double[regions.size() * CHANNELS];
+        return regions.size() - 1;
+    }
+
+    public int size()
+    {
+        return regions.size();
+    }
+
+    public Rect getRegion(int region)
+    {
+        return regions.get(region);
+    }
+
+    /*
+     * True if sample() is going to use an integral image, rather than reading each region
+     */
+    public boolean usesIntegralImage()
+    {
+        return anyOverlap || regions.size() > INTEGRAL_IMAGE_REGION_COUNT;
+    }
+
+    /**
+     * Average every region of a frame
+     *
+     * @param rgb an RGB or RGBA frame; only the first three channels are sampled
+     */
+    public void sample(Mat rgb)
+    {
+        if(usesIntegralImage())
+        {
+            sampleIntegral(rgb);
+        }
+        else
+        {
+            sampleDirect(rgb);
+        }
+    }
+
+    private void sampleDirect(Mat rgb)
+    {
+        int channels = rgb.channels();
+
+        for(int i = 0; i < regions.size(); i++)
+        {
+            Rect region = regions.get(i);
+            int rowLength = region.width * channels;
+
+            byte[] row = rows.get(i);
+
+            if(row.length != rowLength)
+            {
+                row = new byte[rowLength];
+                rows.set(i, row);
+            }
+
+            long sumR = 0, sumG = 0, sumB = 0;
+
+            for(int y = region.y; y < region.y + region.height; y++)
+            {
+                // The buffer is exactly as long as the region is wide, so this only reads this region's slice of the row
+                rgb.get(y, region.x, row);
+
+                for(int p = 0; p < rowLength; p += channels)
+                {
+                    sumR += row[p] & 0xFF;
+                    sumG += row[p+1] & 0xFF;
+                    sumB += row[p+2] & 0xFF;
+                }
+            }
+
+            double area = region.area();
+            means[i*CHANNELS] = sumR / area;
+            means[i*CHANNELS+1] = sumG / area;
+            means[i*CHANNELS+2] = sumB / area;
+        }
+    }
+
+    private void sampleIntegral(Mat rgb)
+    {
+        // One pass over the frame; the integral image is (rows+1) x (cols+1), CV_32S
+        Imgproc.integral(rgb, integral);
+
+        if(corner.length != integral.channels())
+        {
+            corner = new int[integral.channels()];
+        }
+
+        for(int i = 0; i < regions.size(); i++)
+        {
+            Rect region = regions.get(i);
+            int x1 = region.x + region.width;
+            int y1 = region.y + region.height;
+            double area = region.area();
+
+            for(int c = 0; c < CHANNELS; c++)
+            {
+                means[i*CHANNELS+c] = 0;
+            }
+
+            // sum = I(y1, x1) - I(y0, x1) - I(y1, x0) + I(y0, x0)
+            accumulateCorner(y1, x1, i, 1);
+            accumulateCorner(region.y, x1, i, -1);
+            accumulateCorner(y1, region.x, i, -1);
+            accumulateCorner(region.y, region.x, i, 1);
+
+            for(int c = 0; c < CHANNELS; c++)
+            {
+                means[i*CHANNELS+c] /= area;
+            }
+        }
+    }
+
+    private void accumulateCorner(int y, int x, int region, int sign)
+    {
+        integral.get(y, x, corner);
+
+        for(int c = 0; c < CHANNELS; c++)
+        {
+            means[region*CHANNELS+c] += sign * corner[c];
+        }
+    }
+
+    public double meanR(int region)
+    {
+        return means[region*CHANNELS];
+    }
+
+    public double meanG(int region)
+    {
+        return means[region*CHANNELS+1];
+    }
+
+    public double meanB(int region)
+    {
+        return means[region*CHANNELS+2];
+    }
+
+    /*
+     * The average luma of a region, as COLOR_RGB2YCrCb would give
+     */
+    public double meanY(int region)
+    {
+        return 0.299*meanR(region) + 0.587*meanG(region) + 0.114*meanB(region);
+    }
+
+    /*
+     * The average Cr of a region, as COLOR_RGB2YCrCb would give
+     */
+    public double meanCr(int region)
+    {
+        return (meanR(region) - meanY(region))*0.713 + 128;
+    }
+
+    /*
+     * The average Cb of a region, as COLOR_RGB2YCrCb would give
+     */
+    public double meanCb(int region)
+    {
+        return (meanB(region) - meanY(region))*0.564 + 128;
+    }
+
+    public void release()
+    {
+        integral.release();
+    }
+}
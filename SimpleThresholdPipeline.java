@@ -25,7 +25,6 @@ package org.firstinspires.ftc.teamcode;
 
 import com.qualcomm.robotcore.eventloop.opmode.Disabled;
 import org.firstinspires.ftc.robotcore.external.Telemetry;
-import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.Scalar;
 import org.opencv.imgproc.Imgproc;
@@ -68,11 +67,32 @@ public class SimpleThresholdPipeline extends OpenCvPipeline {
      * memory leak and causing the app to crash due to an
      * "Out of Memory" error.
      */
-    private Mat ycrcbMat       = new Mat();
     private Mat binaryMat      = new Mat();
     private Mat maskedInputMat = new Mat();
 
+    private static final Scalar BLACK = new Scalar(0, 0, 0, 0);
+
+    /*
+     * Does the color space conversion and the
+     * thresholding in one pass, see processFrame
+     */
+    private ColorClassifier classifier = new ColorClassifier();
+
+    /*
+     * Times each step of processFrame, when
+     * StageTimer.enabled is set
+     */
+    private StageTimer timer = new StageTimer("SimpleThresholdPipeline");
+    private int classifyTimerStage = timer.addStage("classify");
+    private int maskTimerStage = timer.addStage("mask");
+    private int telemetryTimerStage = timer.addStage("telemetry");
+
     private Telemetry telemetry = null;
+    private TelemetryPublisher.Section telemetrySection;
+    private TelemetryPublisher.Field hintTelemetry;
+    private TelemetryPublisher.Field colorSpaceTelemetry;
+    private TelemetryPublisher.Field lowerTelemetry;
+    private TelemetryPublisher.Field upperTelemetry;
 
     /**
      * Enum to choose which color space to choose
@@ -101,62 +121,81 @@ public class SimpleThresholdPipeline extends OpenCvPipeline {
 
     public SimpleThresholdPipeline(Telemetry telemetry) {
         this.telemetry = telemetry;
+
+        /*
+         * Register our telemetry fields once, up front. The
+         * publisher formats and sends them on its own thread,
+         * so we only have to hand it the values each frame.
+         */
+        telemetrySection = TelemetryPublisher.get(telemetry).addSection();
+        hintTelemetry = telemetrySection.addText("[>]");
+        colorSpaceTelemetry = telemetrySection.addText("[Color Space]");
+        lowerTelemetry = telemetrySection.addText("[Lower Scalar]");
+        upperTelemetry = telemetrySection.addText("[Upper Scalar]");
+        hintTelemetry.set("Change these values in tuner menu");
+
+        timer.publishTo(telemetry);
+    }
+
+    public StageTimer getStageTimer() {
+        return timer;
     }
 
     @Override
     public Mat processFrame(Mat input) {
         /*
-         * Converts our input mat from RGB to
-         * specified color space by the enum.
-         * EOCV ALWAYS returns RGB mats, so you'd
-         * always convert from RGB to the color
-         * space you want to use.
-         *
-         * Takes our "input" mat as an input, and outputs
-         * to a separate Mat buffer "ycrcbMat"
+         * Hand the current bounds and color space to our
+         * classifier. This is cheap, it only copies the
+         * bounds.
          */
-        Imgproc.cvtColor(input, ycrcbMat, colorSpace.cvtCode);
+        timer.beginFrame();
+        classifier.setRange(colorSpace.cvtCode, lower, upper);
 
         /*
          * This is where our thresholding actually happens.
-         * Takes our "ycrcbMat" as input and outputs a "binary"
-         * Mat to "binaryMat" of the same size as our input.
+         * Takes our "input" mat and outputs a "binary" Mat
+         * to "binaryMat" of the same size as our input.
          * "Discards" all the pixels outside the bounds specified
          * by the scalars above (and modifiable with EOCV-Sim's
          * live variable tuner.)
          *
+         * The classifier converts the frame to the color space
+         * and checks every pixel against the bounds natively.
+         *
          * Binary meaning that we have either a 0 or 255 value
          * for every pixel.
          *
          * 0 represents our pixels that were outside the bounds
          * 255 represents our pixels that are inside the bounds
          */
-        Core.inRange(ycrcbMat, lower, upper, binaryMat);
+        classifier.classifyMask(input, binaryMat, 255, 0);
+        timer.lap(classifyTimerStage);
 
         /*
-         * Release the reusable Mat so that old data doesn't
+         * Clear the reusable Mat so that old data doesn't
          * affect the next step in the current processing
          */
-        maskedInputMat.release();
+        maskedInputMat.create(input.size(), input.type());
+        maskedInputMat.setTo(BLACK);
 
         /*
-         * Now, with our binary Mat, we perform a "bitwise and"
-         * to our input image, meaning that we will perform a mask
-         * which will include the pixels from our input Mat which
-         * are "255" in our binary Mat (meaning that they're inside
-         * the range) and will discard any other pixel outside the
-         * range (RGB 0, 0, 0. All discarded pixels will be black)
+         * Now, with our binary Mat, we copy over the pixels
+         * from our input Mat which are "255" in our binary Mat
+         * (meaning that they're inside the range), leaving any
+         * other pixel outside the range black (RGB 0, 0, 0)
          */
-        Core.bitwise_and(input, input, maskedInputMat, binaryMat);
+        input.copyTo(maskedInputMat, binaryMat);
+        timer.lap(maskTimerStage);
 
         /**
          * Add some nice and informative telemetry messages
          */
-        telemetry.addData("[>]", "Change these values in tuner menu");
-        telemetry.addData("[Color Space]", colorSpace.name());
-        telemetry.addData("[Lower Scalar]", lower);
-        telemetry.addData("[Upper Scalar]", upper);
-        telemetry.update();
+        colorSpaceTelemetry.set(colorSpace);
+        lowerTelemetry.set(lower);
+        upperTelemetry.set(upper);
+        telemetrySection.commit();
+        timer.lap(telemetryTimerStage);
+        timer.endFrame();
 
         /*
          * The Mat returned from this method is the
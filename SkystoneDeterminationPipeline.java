@@ -23,7 +23,6 @@ package org.firstinspires.ftc.teamcode;
 
 import com.qualcomm.robotcore.eventloop.opmode.Disabled;
 import org.firstinspires.ftc.robotcore.external.Telemetry;
-import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
@@ -31,6 +30,8 @@ import org.opencv.core.Scalar;
 import org.opencv.imgproc.Imgproc;
 import org.openftc.easyopencv.OpenCvPipeline;
 
+import java.util.Arrays;
+
 @Disabled
 public class SkystoneDeterminationPipeline extends OpenCvPipeline {
     /*
@@ -50,11 +51,14 @@ public class SkystoneDeterminationPipeline extends OpenCvPipeline {
     public final Scalar GREEN = new Scalar(0, 255, 0);
 
     /*
-     * The core values which define the location and size of the sample regions
+     * The core values which define the location and size of the sample regions,
+     * one region per stone, in the same order as the SkystonePosition values
      */
-    static final Point REGION1_TOPLEFT_ANCHOR_POINT = new Point(109,98);
-    static final Point REGION2_TOPLEFT_ANCHOR_POINT = new Point(181,98);
-    static final Point REGION3_TOPLEFT_ANCHOR_POINT = new Point(253,98);
+    static final Point[] REGION_TOPLEFT_ANCHOR_POINTS = {
+            new Point(109,98),
+            new Point(181,98),
+            new Point(253,98)
+    };
     static final int REGION_WIDTH = 20;
     static final int REGION_HEIGHT = 20;
 
@@ -75,83 +79,141 @@ public class SkystoneDeterminationPipeline extends OpenCvPipeline {
      *   ------------------------------------
      *
      */
-    Point region1_pointA = new Point(
-            REGION1_TOPLEFT_ANCHOR_POINT.x,
-            REGION1_TOPLEFT_ANCHOR_POINT.y);
-    Point region1_pointB = new Point(
-            REGION1_TOPLEFT_ANCHOR_POINT.x + REGION_WIDTH,
-            REGION1_TOPLEFT_ANCHOR_POINT.y + REGION_HEIGHT);
-    Point region2_pointA = new Point(
-            REGION2_TOPLEFT_ANCHOR_POINT.x,
-            REGION2_TOPLEFT_ANCHOR_POINT.y);
-    Point region2_pointB = new Point(
-            REGION2_TOPLEFT_ANCHOR_POINT.x + REGION_WIDTH,
-            REGION2_TOPLEFT_ANCHOR_POINT.y + REGION_HEIGHT);
-    Point region3_pointA = new Point(
-            REGION3_TOPLEFT_ANCHOR_POINT.x,
-            REGION3_TOPLEFT_ANCHOR_POINT.y);
-    Point region3_pointB = new Point(
-            REGION3_TOPLEFT_ANCHOR_POINT.x + REGION_WIDTH,
-            REGION3_TOPLEFT_ANCHOR_POINT.y + REGION_HEIGHT);
+    Point[] region_pointA = new Point[REGION_TOPLEFT_ANCHOR_POINTS.length];
+    Point[] region_pointB = new Point[REGION_TOPLEFT_ANCHOR_POINTS.length];
 
     /*
      * Working variables
      */
-    Mat region1_Cb, region2_Cb, region3_Cb;
-    Mat YCrCb = new Mat();
-    Mat Cb = new Mat();
-    int avg1, avg2, avg3;
+    RegionSampler sampler = new RegionSampler();
+    int[] avgs = new int[REGION_TOPLEFT_ANCHOR_POINTS.length];
+    SkystonePosition[] positions = SkystonePosition.values();
+
+    /*
+     * Any single frame can be wrong (someone walks past, the camera
+     * shakes...), so the answer is a vote over the last few frames
+     */
+    static final int DEFAULT_VOTE_WINDOW = 10;
+    static final double DEFAULT_LOCK_CONFIDENCE = 0.8;
+
+    int[] votes = new int[DEFAULT_VOTE_WINDOW]; // Ring buffer of the last few frames' winners
+    int[] voteCounts = new int[REGION_TOPLEFT_ANCHOR_POINTS.length];
+    int voteHead = 0;
+    int numVotes = 0;
+    boolean locked = false;
+
+    // Kept apart from the Result, so counting locked frames doesn't need a new Result every frame.
+    // Volatile since read by the OpMode thread; only ever written by the vision thread
+    private volatile int framesSinceLock = 0;
+
+    // Volatile since set by OpMode thread w/o synchronization
+    private volatile int voteWindow = DEFAULT_VOTE_WINDOW;
+    private volatile double lockConfidence = DEFAULT_LOCK_CONFIDENCE;
+    private volatile boolean earlyLock = false;
+    private volatile boolean unlockRequested = false;
+
+    /*
+     * The outcome of the vote. Immutable, so the OpMode
+     * thread can hold on to one for as long as it likes
+     */
+    public static final class Result
+    {
+        public final SkystonePosition position;
+
+        // The fraction of the frames in the vote which agreed with the position
+        public final double confidence;
+
+        public final boolean locked;
+
+        Result(SkystonePosition position, double confidence, boolean locked)
+        {
+            this.position = position;
+            this.confidence = confidence;
+            this.locked = locked;
+        }
+    }
 
     // Volatile since accessed by OpMode thread w/o synchronization
-    private volatile SkystonePosition position = SkystonePosition.LEFT;
+    private volatile Result result = new Result(SkystonePosition.LEFT, 0, false);
 
     private Telemetry telemetry;
+    private TelemetryPublisher.Section telemetrySection;
+    private TelemetryPublisher.Field patternTelemetry;
+    private TelemetryPublisher.Field confidenceTelemetry;
+    private TelemetryPublisher.Field lockedTelemetry;
+
+    /*
+     * Times each step of processFrame, when StageTimer.enabled is set
+     */
+    private final StageTimer timer = new StageTimer("SkystoneDeterminationPipeline");
+    private final int sampleTimerStage = timer.addStage("sample");
+    private final int drawRegionsTimerStage = timer.addStage("drawRegions");
+    private final int voteTimerStage = timer.addStage("vote");
+    private final int drawResultTimerStage = timer.addStage("drawResult");
 
     public SkystoneDeterminationPipeline(Telemetry telemetry) {
         this.telemetry = telemetry;
+        telemetrySection = TelemetryPublisher.get(telemetry).addSection();
+        patternTelemetry = telemetrySection.addText("[Pattern]");
+        confidenceTelemetry = telemetrySection.addNumber("[Confidence]", 2);
+        lockedTelemetry = telemetrySection.addText("[Locked]");
+
+        for(int i = 0; i < REGION_TOPLEFT_ANCHOR_POINTS.length; i++)
+        {
+            region_pointA[i] = new Point(
+                    REGION_TOPLEFT_ANCHOR_POINTS[i].x,
+                    REGION_TOPLEFT_ANCHOR_POINTS[i].y);
+            region_pointB[i] = new Point(
+                    REGION_TOPLEFT_ANCHOR_POINTS[i].x + REGION_WIDTH,
+                    REGION_TOPLEFT_ANCHOR_POINTS[i].y + REGION_HEIGHT);
+
+            sampler.addRegion(new Rect(region_pointA[i], region_pointB[i]));
+        }
+
+        timer.publishTo(telemetry);
     }
 
-    /*
-     * This function takes the RGB frame, converts to YCrCb,
-     * and extracts the Cb channel to the 'Cb' variable
-     */
-    void inputToCb(Mat input)
+    public StageTimer getStageTimer()
     {
-        Imgproc.cvtColor(input, YCrCb, Imgproc.COLOR_RGB2YCrCb);
-        Core.extractChannel(YCrCb, Cb, 2);
+        return timer;
     }
 
     @Override
-    public void init(Mat firstFrame)
+    public Mat processFrame(Mat input)
     {
-        /*
-         * We need to call this in order to make sure the 'Cb'
-         * object is initialized, so that the submats we make
-         * will still be linked to it on subsequent frames. (If
-         * the object were to only be initialized in processFrame,
-         * then the submats would become delinked because the backing
-         * buffer would be re-allocated the first time a real frame
-         * was crunched)
-         */
-        inputToCb(firstFrame);
+        timer.beginFrame();
+
+        if(unlockRequested || votes.length != voteWindow)
+        {
+            unlockRequested = false;
+            resetVote();
+        }
 
         /*
-         * Submats are a persistent reference to a region of the parent
-         * buffer. Any changes to the child affect the parent, and the
-         * reverse also holds true.
+         * Once the answer is locked in, there's nothing left to work out,
+         * so don't spend any more CPU on it until we're unlocked
          */
-        region1_Cb = Cb.submat(new Rect(region1_pointA, region1_pointB));
-        region2_Cb = Cb.submat(new Rect(region2_pointA, region2_pointB));
-        region3_Cb = Cb.submat(new Rect(region3_pointA, region3_pointB));
-    }
+        if(locked)
+        {
+            // The Result itself doesn't change while we're locked
+            framesSinceLock++;
+            Result lockedResult = result;
+
+            Imgproc.rectangle(
+                    input, // Buffer to draw on
+                    region_pointA[lockedResult.position.ordinal()], // First point which defines the rectangle
+                    region_pointB[lockedResult.position.ordinal()], // Second point which defines the rectangle
+                    GREEN, // The color the rectangle is drawn in
+                    -1); // Negative thickness means solid fill
+
+            timer.endFrame();
+            return input;
+        }
 
-    @Override
-    public Mat processFrame(Mat input)
-    {
         /*
          * Overview of what we're doing:
          *
-         * We first convert to YCrCb color space, from RGB color space.
+         * We look at the frame in YCrCb color space, rather than RGB color space.
          * Why do we do this? Well, in the RGB color space, chroma and
          * luma are intertwined. In YCrCb, chroma and luma are separated.
          * YCrCb is a 3-channel color space, just like RGB. YCrCb's 3 channels
@@ -163,15 +225,19 @@ public class SkystoneDeterminationPipeline extends OpenCvPipeline {
          * light intensity, since that difference would most likely just be
          * reflected in the Y channel.
          *
-         * After we've converted to YCrCb, we extract just the 2nd channel, the
-         * Cb channel. We do this because stones are bright yellow and contrast
-         * STRONGLY on the Cb channel against everything else, including SkyStones
-         * (because SkyStones have a black label).
+         * We only need the 2nd channel, the Cb channel. We use it because stones
+         * are bright yellow and contrast STRONGLY on the Cb channel against
+         * everything else, including SkyStones (because SkyStones have a black label).
          *
-         * We then take the average pixel value of 3 different regions on that Cb
-         * channel, one positioned over each stone. The brightest of the 3 regions
-         * is where we assume the SkyStone to be, since the normal stones show up
-         * extremely darkly.
+         * We then take the average Cb value of 3 different regions, one positioned
+         * over each stone. The brightest of the 3 regions is where we assume the
+         * SkyStone to be, since the normal stones show up extremely darkly.
+         *
+         * We don't actually convert the whole frame to get there though, since we
+         * only ever look at a few hundred pixels of it. Cb is a weighted sum of R, G
+         * and B, so the average Cb of a region is the Cb of its average color. The
+         * sampler averages the RGB pixels of each region straight from the input,
+         * and converts just those averages.
          *
          * We also draw rectangles on the screen showing where the sample regions
          * are, as well as drawing a solid rectangle over top the sample region
@@ -184,113 +250,105 @@ public class SkystoneDeterminationPipeline extends OpenCvPipeline {
          */
 
         /*
-         * Get the Cb channel of the input frame after conversion to YCrCb
-         */
-        inputToCb(input);
-
-        /*
-         * Compute the average pixel value of each submat region. We're
-         * taking the average of a single channel buffer, so the value
-         * we need is at index 0. We could have also taken the average
-         * pixel value of the 3-channel image, and referenced the value
-         * at index 2 here.
+         * Compute the average Cb value of each sample region
          */
-        avg1 = (int) Core.mean(region1_Cb).val[0];
-        avg2 = (int) Core.mean(region2_Cb).val[0];
-        avg3 = (int) Core.mean(region3_Cb).val[0];
+        sampler.sample(input);
 
-        /*
-         * Draw a rectangle showing sample region 1 on the screen.
-         * Simply a visual aid. Serves no functional purpose.
-         */
-        Imgproc.rectangle(
-                input, // Buffer to draw on
-                region1_pointA, // First point which defines the rectangle
-                region1_pointB, // Second point which defines the rectangle
-                BLUE, // The color the rectangle is drawn in
-                2); // Thickness of the rectangle lines
+        for(int i = 0; i < avgs.length; i++)
+        {
+            avgs[i] = (int) sampler.meanCb(i);
+        }
 
-        /*
-         * Draw a rectangle showing sample region 2 on the screen.
-         * Simply a visual aid. Serves no functional purpose.
-         */
-        Imgproc.rectangle(
-                input, // Buffer to draw on
-                region2_pointA, // First point which defines the rectangle
-                region2_pointB, // Second point which defines the rectangle
-                BLUE, // The color the rectangle is drawn in
-                2); // Thickness of the rectangle lines
+        timer.lap(sampleTimerStage);
 
         /*
-         * Draw a rectangle showing sample region 3 on the screen.
+         * Draw a rectangle showing each sample region on the screen.
          * Simply a visual aid. Serves no functional purpose.
          */
-        Imgproc.rectangle(
-                input, // Buffer to draw on
-                region3_pointA, // First point which defines the rectangle
-                region3_pointB, // Second point which defines the rectangle
-                BLUE, // The color the rectangle is drawn in
-                2); // Thickness of the rectangle lines
+        for(int i = 0; i < avgs.length; i++)
+        {
+            Imgproc.rectangle(
+                    input, // Buffer to draw on
+                    region_pointA[i], // First point which defines the rectangle
+                    region_pointB[i], // Second point which defines the rectangle
+                    BLUE, // The color the rectangle is drawn in
+                    2); // Thickness of the rectangle lines
+        }
 
+        timer.lap(drawRegionsTimerStage);
 
         /*
-         * Find the max of the 3 averages
+         * Find the region with the max of the averages. On a tie,
+         * the leftmost region wins
          */
-        int maxOneTwo = Math.max(avg1, avg2);
-        int max = Math.max(maxOneTwo, avg3);
+        int maxRegion = 0;
+
+        for(int i = 1; i < avgs.length; i++)
+        {
+            if(avgs[i] > avgs[maxRegion])
+            {
+                maxRegion = i;
+            }
+        }
 
         /*
-         * Now that we found the max, we actually need to go and
-         * figure out which sample region that value was from
+         * Record this frame's winner as its vote, replacing the oldest
+         * vote once the window is full, and see who's winning overall
          */
-        if(max == avg1) // Was it from region 1?
+        if(numVotes == votes.length)
         {
-            position = SkystonePosition.LEFT; // Record our analysis
-
-            /*
-             * Draw a solid rectangle on top of the chosen region.
-             * Simply a visual aid. Serves no functional purpose.
-             */
-            Imgproc.rectangle(
-                    input, // Buffer to draw on
-                    region1_pointA, // First point which defines the rectangle
-                    region1_pointB, // Second point which defines the rectangle
-                    GREEN, // The color the rectangle is drawn in
-                    -1); // Negative thickness means solid fill
+            voteCounts[votes[voteHead]]--;
         }
-        else if(max == avg2) // Was it from region 2?
+        else
         {
-            position = SkystonePosition.CENTER; // Record our analysis
-
-            /*
-             * Draw a solid rectangle on top of the chosen region.
-             * Simply a visual aid. Serves no functional purpose.
-             */
-            Imgproc.rectangle(
-                    input, // Buffer to draw on
-                    region2_pointA, // First point which defines the rectangle
-                    region2_pointB, // Second point which defines the rectangle
-                    GREEN, // The color the rectangle is drawn in
-                    -1); // Negative thickness means solid fill
+            numVotes++;
         }
-        else if(max == avg3) // Was it from region 3?
+
+        votes[voteHead] = maxRegion;
+        voteCounts[maxRegion]++;
+        voteHead = (voteHead + 1) % votes.length;
+
+        int winner = 0;
+
+        for(int i = 1; i < voteCounts.length; i++)
         {
-            position = SkystonePosition.RIGHT; // Record our analysis
+            if(voteCounts[i] > voteCounts[winner])
+            {
+                winner = i;
+            }
+        }
 
-            /*
-             * Draw a solid rectangle on top of the chosen region.
-             * Simply a visual aid. Serves no functional purpose.
-             */
-            Imgproc.rectangle(
-                    input, // Buffer to draw on
-                    region3_pointA, // First point which defines the rectangle
-                    region3_pointB, // Second point which defines the rectangle
-                    GREEN, // The color the rectangle is drawn in
-                    -1); // Negative thickness means solid fill
+        double confidence = (double) voteCounts[winner] / numVotes;
+
+        /*
+         * Lock the answer in once a full window of frames agrees strongly enough
+         */
+        if(earlyLock && numVotes == votes.length && confidence >= lockConfidence)
+        {
+            locked = true;
+            framesSinceLock = 0;
         }
 
-        telemetry.addData("[Pattern]", position);
-        telemetry.update();
+        result = new Result(positions[winner], confidence, locked); // Record our analysis
+        timer.lap(voteTimerStage);
+
+        /*
+         * Draw a solid rectangle on top of the region that won this frame.
+         * Simply a visual aid. Serves no functional purpose.
+         */
+        Imgproc.rectangle(
+                input, // Buffer to draw on
+                region_pointA[maxRegion], // First point which defines the rectangle
+                region_pointB[maxRegion], // Second point which defines the rectangle
+                GREEN, // The color the rectangle is drawn in
+                -1); // Negative thickness means solid fill
+
+        patternTelemetry.set(result.position);
+        confidenceTelemetry.set(result.confidence);
+        lockedTelemetry.set(result.locked);
+        telemetrySection.commit();
+        timer.lap(drawResultTimerStage);
+        timer.endFrame();
 
         /*
          * Render the 'input' buffer to the viewport. But note this is not
@@ -300,11 +358,81 @@ public class SkystoneDeterminationPipeline extends OpenCvPipeline {
         return input;
     }
 
+    void resetVote()
+    {
+        if(votes.length != voteWindow)
+        {
+            votes = new int[voteWindow];
+        }
+
+        Arrays.fill(voteCounts, 0);
+        voteHead = 0;
+        numVotes = 0;
+        locked = false;
+        framesSinceLock = 0;
+    }
+
     /*
      * Call this from the OpMode thread to obtain the latest analysis
      */
     public SkystonePosition getAnalysis()
     {
-        return position;
+        return result.position;
+    }
+
+    /*
+     * Call this from the OpMode thread to obtain the latest analysis,
+     * along with how confident we are in it and whether it's locked
+     */
+    public Result getResult()
+    {
+        return result;
+    }
+
+    /*
+     * Call this from the OpMode thread to find out how many frames have gone by
+     * since the result was locked, or 0 if it isn't
+     */
+    public int getFramesSinceLock()
+    {
+        return framesSinceLock;
+    }
+
+    /**
+     * Set how many of the most recent frames vote on the answer.
+     * Takes effect (and restarts the vote) on the next frame.
+     *
+     * @param frames the number of frames in the vote
+     */
+    public void setVoteWindow(int frames)
+    {
+        if(frames < 1)
+        {
+            throw new IllegalArgumentException("The vote needs at least one frame");
+        }
+
+        voteWindow = frames;
+    }
+
+    /**
+     * Lock the answer in, and stop processing frames, as soon as a full window of
+     * frames agrees on it with at least the given confidence. Stays locked until
+     * unlock() is called.
+     *
+     * @param enabled whether to lock the answer in
+     * @param confidence the fraction of the window which must agree, e.g. 0.8
+     */
+    public void setEarlyLock(boolean enabled, double confidence)
+    {
+        lockConfidence = confidence;
+        earlyLock = enabled;
+    }
+
+    /*
+     * Throw away a locked answer (and the vote behind it) and start processing frames again
+     */
+    public void unlock()
+    {
+        unlockRequested = true;
     }
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+
+/*
+ * A tiny dependency graph of processing stages, evaluated lazily.
+ *
+ * Pipelines with a tappable viewport used to compute every single debug image
+ * on every frame, even though only one of them is ever on screen (and in a match,
+ * none of them are). Instead, each stage now declares which other stages it reads
+ * from. Each frame, the pipeline asks for the stages its analysis needs, plus the
+ * one being shown, and only those (and whatever they depend on) get run.
+ */
+public final class StageGraph
+{
+    private final ArrayList<Stage> stages = new ArrayList<>();
+    private StageTimer timer;
+
+    public final class Stage
+    {
+        final String name;
+        final Runnable compute;
+        final Stage[] inputs;
+        final Mat output;
+        private boolean evaluated;
+        private int timerStage = -1;
+
+        private Stage(String name, Runnable compute, Mat output, Stage[] inputs)
+        {
+            this.name = name;
+            this.compute = compute;
+            this.output = output;
+            this.inputs = inputs;
+        }
+
+        /*
+         * The buffer this stage renders into, or null if it doesn't produce an image
+         */
+        public Mat getOutput()
+        {
+            return output;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+    }
+
+    /**
+     * Add a stage to the graph. Stages can only depend on stages added before them,
+     * so the graph can never contain a cycle.
+     *
+     * @param name a name for the stage, for debugging
+     * @param compute does the stage's work; only called once its inputs have been evaluated
+     * @param output the buffer the stage renders into, or null if it doesn't produce an image
+     * @param inputs the stages whose results this stage reads
+     * @return the new stage
+     */
+    public Stage add(String name, Runnable compute, Mat output, Stage... inputs)
+    {
+        Stage stage = new Stage(name, compute, output, inputs);
+        stages.add(stage);
+
+        if(timer != null)
+        {
+            stage.timerStage = timer.addStage(name);
+        }
+
+        return stage;
+    }
+
+    /*
+     * Time every stage that gets run with a timer, from now on. A stage's time
+     * doesn't include evaluating its inputs.
+     */
+    public void setTimer(StageTimer timer)
+    {
+        this.timer = timer;
+
+        for(Stage stage : stages)
+        {
+            stage.timerStage = timer.addStage(stage.name);
+        }
+    }
+
+    /*
+     * Forget everything evaluated for the previous frame. Call this at the top of processFrame()
+     */
+    public void newFrame()
+    {
+        for(Stage stage : stages)
+        {
+            stage.evaluated = false;
+        }
+    }
+
+    /**
+     * Make sure a stage has been evaluated for this frame, evaluating it (and any of its inputs
+     * which haven't been yet) if need be
+     *
+     * @param stage the stage whose result is needed
+     * @return the stage's output buffer, or null if it doesn't produce an image
+     */
+    public Mat require(Stage stage)
+    {
+        if(!stage.evaluated)
+        {
+            for(Stage input : stage.inputs)
+            {
+                require(input);
+            }
+
+            if(timer != null)
+            {
+                long start = timer.start();
+                stage.compute.run();
+                timer.stop(stage.timerStage, start);
+            }
+            else
+            {
+                stage.compute.run();
+            }
+
+            stage.evaluated = true;
+        }
+
+        return stage.output;
+    }
+}
@@ -26,6 +26,7 @@ import org.firstinspires.ftc.robotcore.external.Telemetry;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
 import org.opencv.core.Scalar;
 import org.opencv.imgproc.Imgproc;
 import org.openftc.easyopencv.OpenCvPipeline;
@@ -39,9 +40,22 @@ public class StageSwitchingPipeline extends OpenCvPipeline
     Mat yCbCrChan2Mat = new Mat();
     Mat thresholdMat = new Mat();
     Mat contoursOnFrameMat = new Mat();
+    Mat hierarchyMat = new Mat();
     List<MatOfPoint> contoursList = new ArrayList<>();
     int numContoursFound;
 
+    /*
+     * Counting blobs doesn't need their outlines, so optionally
+     * count them with connected components instead of contours
+     */
+    BlobDetector blobDetector = new BlobDetector();
+    volatile boolean useBlobDetector = false;
+    boolean blobsThisFrame;
+    Point blobTopLeft = new Point();
+    Point blobBottomRight = new Point();
+
+    static final Scalar CONTOUR_COLOR = new Scalar(0, 0, 255);
+
     enum Stage
     {
         YCbCr_CHAN2,
@@ -53,10 +67,38 @@ public class StageSwitchingPipeline extends OpenCvPipeline
     private Stage stageToRenderToViewport = Stage.YCbCr_CHAN2;
     private Stage[] stages = Stage.values();
 
+    /*
+     * The processing graph. Counting contours is the only thing we actually need every
+     * frame; the overlay is only drawn when it's the stage being shown.
+     */
+    private final StageGraph graph = new StageGraph();
+    private final StageGraph.Stage chan2Stage = graph.add("YCbCr_CHAN2", this::extractChan2, yCbCrChan2Mat);
+    private final StageGraph.Stage thresholdStage = graph.add("THRESHOLD", this::threshold, thresholdMat, chan2Stage);
+    private final StageGraph.Stage contoursStage = graph.add("CONTOURS", this::findContours, null, thresholdStage);
+    private final StageGraph.Stage overlayStage = graph.add("CONTOURS_OVERLAYED_ON_FRAME", this::drawContours, contoursOnFrameMat, contoursStage);
+    private Mat input;
+
+    // Times every stage the graph runs, when StageTimer.enabled is set
+    private final StageTimer timer = new StageTimer("StageSwitchingPipeline");
+
     private Telemetry telemetry;
+    private TelemetryPublisher.Section telemetrySection;
+    private TelemetryPublisher.Field stageTelemetry;
+    private TelemetryPublisher.Field contoursTelemetry;
 
     public StageSwitchingPipeline(Telemetry telemetry) {
         this.telemetry = telemetry;
+        telemetrySection = TelemetryPublisher.get(telemetry).addSection();
+        stageTelemetry = telemetrySection.addText("[Stage]");
+        contoursTelemetry = telemetrySection.addNumber("[Found Contours]", 0);
+
+        graph.setTimer(timer);
+        timer.publishTo(telemetry);
+    }
+
+    public StageTimer getStageTimer()
+    {
+        return timer;
     }
 
     @Override
@@ -82,51 +124,115 @@ public class StageSwitchingPipeline extends OpenCvPipeline
     @Override
     public Mat processFrame(Mat input)
     {
-        contoursList.clear();
+        this.input = input;
+        timer.beginFrame();
+        graph.newFrame();
+        blobsThisFrame = useBlobDetector;
 
         /*
          * This pipeline finds the contours of yellow blobs such as the Gold Mineral
          * from the Rover Ruckus game.
          */
-        Imgproc.cvtColor(input, yCbCrChan2Mat, Imgproc.COLOR_RGB2YCrCb);
-        Core.extractChannel(yCbCrChan2Mat, yCbCrChan2Mat, 2);
-        Imgproc.threshold(yCbCrChan2Mat, thresholdMat, 102, 255, Imgproc.THRESH_BINARY_INV);
-        Imgproc.findContours(thresholdMat, contoursList, new Mat(), Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
-        numContoursFound = contoursList.size();
-        input.copyTo(contoursOnFrameMat);
-        Imgproc.drawContours(contoursOnFrameMat, contoursList, -1, new Scalar(0, 0, 255), 3, 8);
+        graph.require(contoursStage);
+
+        stageTelemetry.set(stageToRenderToViewport);
+        contoursTelemetry.set(numContoursFound);
+        telemetrySection.commit();
 
-        telemetry.addData("[Stage]", stageToRenderToViewport);
-        telemetry.addData("[Found Contours]", "%d", numContoursFound);
-        telemetry.update();
+        Mat output;
 
         switch (stageToRenderToViewport)
         {
             case YCbCr_CHAN2:
             {
-                return yCbCrChan2Mat;
+                output = graph.require(chan2Stage);
+                break;
             }
 
             case THRESHOLD:
             {
-                return thresholdMat;
+                output = graph.require(thresholdStage);
+                break;
             }
 
             case CONTOURS_OVERLAYED_ON_FRAME:
             {
-                return contoursOnFrameMat;
+                output = graph.require(overlayStage);
+                break;
             }
 
             case RAW_IMAGE:
+            default:
             {
-                return input;
+                output = input;
+                break;
             }
+        }
 
-            default:
+        timer.endFrame();
+        return output;
+    }
+
+    void extractChan2()
+    {
+        Imgproc.cvtColor(input, yCbCrChan2Mat, Imgproc.COLOR_RGB2YCrCb);
+        Core.extractChannel(yCbCrChan2Mat, yCbCrChan2Mat, 2);
+    }
+
+    void threshold()
+    {
+        Imgproc.threshold(yCbCrChan2Mat, thresholdMat, 102, 255, Imgproc.THRESH_BINARY_INV);
+    }
+
+    void findContours()
+    {
+        for(MatOfPoint contour : contoursList)
+        {
+            contour.release();
+        }
+        contoursList.clear();
+
+        if(blobsThisFrame)
+        {
+            numContoursFound = blobDetector.detect(thresholdMat);
+            return;
+        }
+
+        Imgproc.findContours(thresholdMat, contoursList, hierarchyMat, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
+        numContoursFound = contoursList.size();
+    }
+
+    void drawContours()
+    {
+        input.copyTo(contoursOnFrameMat);
+
+        if(blobsThisFrame)
+        {
+            // Blobs have no outline, so draw their bounding boxes instead
+            for(int i = 0; i < blobDetector.count(); i++)
             {
-                return input;
+                blobTopLeft.x = blobDetector.left(i);
+                blobTopLeft.y = blobDetector.top(i);
+                blobBottomRight.x = blobDetector.left(i) + blobDetector.width(i) - 1;
+                blobBottomRight.y = blobDetector.top(i) + blobDetector.height(i) - 1;
+                Imgproc.rectangle(contoursOnFrameMat, blobTopLeft, blobBottomRight, CONTOUR_COLOR, 3);
             }
+            return;
         }
+
+        Imgproc.drawContours(contoursOnFrameMat, contoursList, -1, CONTOUR_COLOR, 3, 8);
+    }
+
+    /**
+     * Count blobs using connected components rather than contours. Can be called from
+     * any thread; takes effect on the next frame. Note that unlike contours, a hole in
+     * a blob isn't counted separately.
+     *
+     * @param useBlobDetector whether to count with connected components
+     */
+    public void setUseBlobDetector(boolean useBlobDetector)
+    {
+        this.useBlobDetector = useBlobDetector;
     }
 
     public int getNumContoursFound()
@@ -0,0 +1,325 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.firstinspires.ftc.robotcore.external.Telemetry;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/*
+ * Times each stage of a pipeline's processFrame(), every frame, so we can see where
+ * the time actually goes (and which stage to go after) instead of guessing.
+ *
+ * A pipeline adds its stages up front, then marks stage boundaries as it goes:
+ *
+ *   timer.beginFrame();
+ *   ... convert ...
+ *   timer.lap(convertStage);     // the time since beginFrame() (or the last lap)
+ *   ... threshold ...
+ *   timer.lap(thresholdStage);
+ *   timer.endFrame();            // the whole frame, recorded as the "frame" stage
+ *
+ * or, for a stage which doesn't simply follow the previous one, with
+ * long start = timer.start(); ... timer.stop(stage, start). StageGraph does the
+ * latter for every stage it runs, once it's been given a timer.
+ *
+ * Each stage records into its own preallocated LatencyHistogram, so timing a frame
+ * allocates nothing. Percentiles are sent to telemetry every so often, if asked
+ * to, and can be written to a file. Nothing shows up in telemetry until timing is
+ * enabled, and the percentiles are formatted on the publisher's thread, not ours.
+ *
+ * Timing is off unless `enabled` is set (e.g. from EOCV-Sim's variable tuner). While
+ * it's off, every call returns after reading that one flag. It's only read in
+ * beginFrame(), so a frame is always either timed as a whole or not at all.
+ */
+public final class StageTimer
+{
+    // The switch for every pipeline's timer
+    public static boolean enabled = false;
+
+    // How often to send the percentiles to telemetry, in frames
+    public static int TELEMETRY_INTERVAL_FRAMES = 30;
+
+    // Stage 0 is always the whole frame
+    public static final int FRAME = 0;
+
+    private final String name;
+    private final ArrayList<String> stageNames = new ArrayList<>();
+    private final ArrayList<LatencyHistogram> histograms = new ArrayList<>();
+
+    // Only touched by the pipeline's thread
+    private boolean timingThisFrame;
+    private long frameStart;
+    private long lastMark;
+    private int framesSinceTelemetry;
+
+    private volatile boolean resetRequested;
+
+    private Telemetry telemetry;
+    private TelemetryPublisher.Section telemetrySection;
+    private final ArrayList<TelemetryPublisher.Field> stageTelemetry = new ArrayList<>();
+
+    /**
+     * @param name the name of the pipeline being timed, for telemetry and dumps
+     */
+    public StageTimer(String name)
+    {
+        this.name = name;
+        addStage("frame");
+    }
+
+    /**
+     * Add a stage to time. Call this before the first frame.
+     *
+     * @param stageName the name to report the stage under
+     * @return the index of the stage, to pass to lap() and stop()
+     */
+    public int addStage(String stageName)
+    {
+        stageNames.add(stageName);
+        histograms.add(new LatencyHistogram());
+        return stageNames.size() - 1;
+    }
+
+    /*
+     * Start timing a frame. Call this at the top of processFrame()
+     */
+    public void beginFrame()
+    {
+        timingThisFrame = enabled;
+
+        if(!timingThisFrame)
+        {
+            return;
+        }
+
+        if(resetRequested)
+        {
+            resetRequested = false;
+
+            for(LatencyHistogram histogram : histograms)
+            {
+                histogram.reset();
+            }
+        }
+
+        frameStart = System.nanoTime();
+        lastMark = frameStart;
+    }
+
+    /*
+     * Record the time since beginFrame(), or the last lap() or stop(), against a stage
+     */
+    public void lap(int stage)
+    {
+        if(!timingThisFrame)
+        {
+            return;
+        }
+
+        long now = System.nanoTime();
+        histograms.get(stage).record(now - lastMark);
+        lastMark = now;
+    }
+
+    /*
+     * The start of a stage, to hand to stop() afterwards. Returns 0 when not timing.
+     */
+    public long start()
+    {
+        return timingThisFrame ? System.nanoTime() : 0;
+    }
+
+    /*
+     * Record the time since start() against a stage
+     */
+    public void stop(int stage, long start)
+    {
+        if(!timingThisFrame)
+        {
+            return;
+        }
+
+        long now = System.nanoTime();
+        histograms.get(stage).record(now - start);
+        lastMark = now;
+    }
+
+    /*
+     * Finish timing a frame. Call this just before processFrame() returns
+     */
+    public void endFrame()
+    {
+        if(!timingThisFrame)
+        {
+            return;
+        }
+
+        histograms.get(FRAME).record(System.nanoTime() - frameStart);
+        timingThisFrame = false;
+
+        if(telemetry != null && ++framesSinceTelemetry >= TELEMETRY_INTERVAL_FRAMES)
+        {
+            framesSinceTelemetry = 0;
+            sendTelemetry();
+        }
+    }
+
+    /**
+     * Send the latency percentiles of each stage to telemetry, every TELEMETRY_INTERVAL_FRAMES
+     * frames while timing is enabled
+     *
+     * @param telemetry the telemetry to send them to
+     */
+    public void publishTo(Telemetry telemetry)
+    {
+        if(telemetry == null)
+        {
+            throw new IllegalArgumentException("telemetry must not be null");
+        }
+
+        this.telemetry = telemetry;
+    }
+
+    private void sendTelemetry()
+    {
+        // The fields are only registered once there's something to put in them, so that
+        // telemetry isn't cluttered with empty ones while timing is off
+        if(telemetrySection == null)
+        {
+            telemetrySection = TelemetryPublisher.get(telemetry).addSection();
+        }
+
+        while(stageTelemetry.size() < stageNames.size())
+        {
+            stageTelemetry.add(telemetrySection.addText("[" + name + "] " + stageNames.get(stageTelemetry.size())));
+        }
+
+        for(int i = 0; i < histograms.size(); i++)
+        {
+            LatencyHistogram histogram = histograms.get(i);
+            TelemetryPublisher.Field field = stageTelemetry.get(i);
+
+            if(histogram.getCount() == 0)
+            {
+                // A stage that hasn't run (e.g. a viewport stage that isn't being shown)
+                field.hide();
+                continue;
+            }
+
+            // Formatted by the publisher's thread, when it calls toString()
+            field.set(new Percentiles(
+                    histogram.getPercentileMillis(0.50),
+                    histogram.getPercentileMillis(0.95),
+                    histogram.getPercentileMillis(0.99),
+                    histogram.getMaxMillis()));
+        }
+
+        telemetrySection.commit();
+    }
+
+    /*
+     * One stage's percentiles, as handed to telemetry. Immutable, since it's read by the
+     * publisher's thread while we carry on timing.
+     */
+    private static final class Percentiles
+    {
+        final double p50, p95, p99, max;
+
+        Percentiles(double p50, double p95, double p99, double max)
+        {
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder builder = new StringBuilder("p50 ");
+            TelemetryPublisher.appendFixed(builder, p50, 2);
+            builder.append("  p95 ");
+            TelemetryPublisher.appendFixed(builder, p95, 2);
+            builder.append("  p99 ");
+            TelemetryPublisher.appendFixed(builder, p99, 2);
+            builder.append("  max ");
+            TelemetryPublisher.appendFixed(builder, max, 2);
+            return builder.append(" ms").toString();
+        }
+    }
+
+    /*
+     * Forget everything recorded so far. Takes effect at the start of the next timed frame.
+     */
+    public void reset()
+    {
+        resetRequested = true;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public int getStageCount()
+    {
+        return stageNames.size();
+    }
+
+    public String getStageName(int stage)
+    {
+        return stageNames.get(stage);
+    }
+
+    public LatencyHistogram getHistogram(int stage)
+    {
+        return histograms.get(stage);
+    }
+
+    /**
+     * Write a summary line for each stage, then the non-empty buckets of each stage's
+     * histogram, as CSV. If the pipeline is still running, the numbers may be off by a
+     * frame or so.
+     *
+     * @param file the file to write
+     */
+    public void dumpToFile(File file) throws IOException
+    {
+        try(PrintWriter out = new PrintWriter(new FileWriter(file)))
+        {
+            out.println("pipeline,stage,count,mean_ms,p50_ms,p95_ms,p99_ms,max_ms");
+
+            for(int i = 0; i < histograms.size(); i++)
+            {
+                LatencyHistogram histogram = histograms.get(i);
+                out.println(String.format(Locale.US, "%s,%s,%d,%.4f,%.4f,%.4f,%.4f,%.4f",
+                        name, stageNames.get(i), histogram.getCount(), histogram.getMeanMillis(),
+                        histogram.getPercentileMillis(0.50), histogram.getPercentileMillis(0.95),
+                        histogram.getPercentileMillis(0.99), histogram.getMaxMillis()));
+            }
+
+            out.println();
+            out.println("pipeline,stage,bucket_lower_us,bucket_upper_us,count");
+
+            for(int i = 0; i < histograms.size(); i++)
+            {
+                LatencyHistogram histogram = histograms.get(i);
+
+                for(int bucket = 0; bucket < histogram.getNumBuckets(); bucket++)
+                {
+                    if(histogram.getBucketCount(bucket) > 0)
+                    {
+                        out.println(name + "," + stageNames.get(i) + ","
+                                + LatencyHistogram.bucketLowerMicros(bucket) + ","
+                                + LatencyHistogram.bucketUpperMicros(bucket) + ","
+                                + histogram.getBucketCount(bucket));
+                    }
+                }
+            }
+        }
+    }
+}
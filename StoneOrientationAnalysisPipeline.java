@@ -26,18 +26,18 @@ import org.openftc.easyopencv.OpenCvPipeline;
 
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfInt;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
 import org.opencv.core.RotatedRect;
 import org.opencv.core.Scalar;
-import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinTask;
 
 @Disabled
 public class StoneOrientationAnalysisPipeline extends OpenCvPipeline
@@ -57,10 +57,23 @@ public class StoneOrientationAnalysisPipeline extends OpenCvPipeline
     static final double DENSITY_UPRIGHT_THRESHOLD = 0.03;
 
     /*
-     * The elements we use for noise reduction
+     * The elements we use for noise reduction: we erode twice by the
+     * smaller one, then dilate twice by the larger one
      */
-    Mat erodeElement = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(3, 3));
-    Mat dilateElement = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(6, 6));
+    static final int ERODE_ELEMENT_SIZE = 3;
+    static final int DILATE_ELEMENT_SIZE = 6;
+    static final int NOISE_REDUCTION_ITERATIONS = 2;
+    BinaryMorphology noiseReduction;
+
+    /*
+     * Stones are big, so we can find them in a downscaled frame just fine.
+     * Everything up to and including finding contours happens at the lower
+     * resolution; the contours are then mapped back to the full frame, so the
+     * analysis, the drawing and the results are all in full frame coordinates.
+     */
+    FrameScaler scaler = new FrameScaler();
+    volatile int requestedDownscale = 1;
+    Mat scaledInput;
 
     /*
      * Colors
@@ -74,20 +87,128 @@ public class StoneOrientationAnalysisPipeline extends OpenCvPipeline
     static final int CONTOUR_LINE_THICKNESS = 2;
     static final int CB_CHAN_IDX = 2;
 
-    static class AnalyzedStone
+    public enum StoneOrientation
     {
-        StoneOrientation orientation;
-        double angle;
+        UPRIGHT,
+        NOT_UPRIGHT
     }
 
-    enum StoneOrientation
+    /*
+     * The stones found in one frame. These are preallocated and reused, so
+     * only read one between calls to getStones(); see below.
+     */
+    public static final class StoneSnapshot
     {
-        UPRIGHT,
-        NOT_UPRIGHT
+        long sequence;
+        long captureTimeNanos;
+        int count;
+
+        double[] centerX = new double[8];
+        double[] centerY = new double[8];
+        double[] angle = new double[8];
+        double[] area = new double[8];
+        StoneOrientation[] orientation = new StoneOrientation[8];
+
+        /*
+         * Counts up by one for every frame processed, starting from 1
+         * (a snapshot with sequence 0 hasn't been written yet)
+         */
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        /*
+         * When the frame started being processed, on the System.nanoTime() clock
+         */
+        public long getCaptureTimeNanos()
+        {
+            return captureTimeNanos;
+        }
+
+        /*
+         * How long ago the frame started being processed
+         */
+        public double getAgeMillis()
+        {
+            return (System.nanoTime() - captureTimeNanos) / 1e6;
+        }
+
+        public int size()
+        {
+            return count;
+        }
+
+        // UNITS ARE PIXELS, in the full frame
+        public double getCenterX(int stone)
+        {
+            return centerX[stone];
+        }
+
+        public double getCenterY(int stone)
+        {
+            return centerY[stone];
+        }
+
+        // UNITS ARE DEGREES
+        public double getAngle(int stone)
+        {
+            return angle[stone];
+        }
+
+        // UNITS ARE PIXELS, in the full frame
+        public double getArea(int stone)
+        {
+            return area[stone];
+        }
+
+        public StoneOrientation getOrientation(int stone)
+        {
+            return orientation[stone];
+        }
+
+        void clear(long sequence, long captureTimeNanos)
+        {
+            this.sequence = sequence;
+            this.captureTimeNanos = captureTimeNanos;
+            count = 0;
+        }
+
+        void add(double centerX, double centerY, double angle, double area, StoneOrientation orientation)
+        {
+            if(count == this.centerX.length)
+            {
+                int size = count * 2;
+                this.centerX = Arrays.copyOf(this.centerX, size);
+                this.centerY = Arrays.copyOf(this.centerY, size);
+                this.angle = Arrays.copyOf(this.angle, size);
+                this.area = Arrays.copyOf(this.area, size);
+                this.orientation = Arrays.copyOf(this.orientation, size);
+            }
+
+            this.centerX[count] = centerX;
+            this.centerY[count] = centerY;
+            this.angle[count] = angle;
+            this.area[count] = area;
+            this.orientation[count] = orientation;
+            count++;
+        }
     }
 
-    ArrayList<AnalyzedStone> internalStoneList = new ArrayList<>();
-    volatile ArrayList<AnalyzedStone> clientStoneList = new ArrayList<>();
+    /*
+     * The results are triple buffered. The vision thread fills in the back snapshot,
+     * then swaps it with the ready one. When the client asks for the stones, the ready
+     * snapshot (if there's a newer one) is swapped with the one the client was reading.
+     * So neither side ever sees the other writing, and nothing is allocated per frame.
+     * The lock is only ever held to swap two references.
+     */
+    final Object stoneSnapshotLock = new Object();
+    StoneSnapshot backSnapshot = new StoneSnapshot();
+    StoneSnapshot readySnapshot = new StoneSnapshot();
+    StoneSnapshot clientSnapshot = new StoneSnapshot();
+    boolean readySnapshotIsNew = false;
+    long frameSequence = 0;
+    long frameCaptureTimeNanos;
 
     /*
      * Some stuff to handle returning our various buffers
@@ -106,6 +227,45 @@ public class StoneOrientationAnalysisPipeline extends OpenCvPipeline
     // Keep track of what stage the viewport is showing
     int stageNum = 0;
 
+    /*
+     * The processing graph. Only the analysis (which draws onto the input) is needed
+     * every frame; the contours-on-plain-image view is only drawn when it's being shown.
+     */
+    StageGraph graph = new StageGraph();
+    StageGraph.Stage cbStage = graph.add("Cb", this::extractCb, cbMat);
+    StageGraph.Stage maskStage = graph.add("MASK", this::thresholdCb, thresholdMat, cbStage);
+    StageGraph.Stage maskNrStage = graph.add("MASK_NR", () -> morphMask(thresholdMat, morphedThreshold), morphedThreshold, maskStage);
+    StageGraph.Stage contoursStage = graph.add("contours", this::findContours, null, maskNrStage);
+    StageGraph.Stage contoursOverlayStage = graph.add("CONTOURS", this::drawContours, contoursOnPlainImageMat, contoursStage);
+    StageGraph.Stage analysisStage = graph.add("FINAL", this::analyzeContours, null, contoursStage);
+    Mat input;
+
+    /*
+     * Times every stage the graph runs (and the downscale before it), when StageTimer.enabled
+     * is set. Nothing is sent to telemetry unless the OpMode asks, via getStageTimer().
+     */
+    StageTimer timer = new StageTimer("StoneOrientationAnalysisPipeline");
+    int downscaleTimerStage = timer.addStage("downscale");
+    ArrayList<MatOfPoint> contoursList = new ArrayList<>();
+    Mat hierarchyMat = new Mat();
+
+    /*
+     * The contours as primitives, reused every frame
+     */
+    ContourBuffer contourBuffer = new ContourBuffer();
+
+    /*
+     * Contours are analyzed in parallel, each worker with its own analyzer (and
+     * so its own scratch buffers). Nothing is drawn while analyzing; each contour's
+     * result says what to draw, and it's all drawn afterwards on the vision thread.
+     */
+    volatile boolean parallelAnalysis = true;
+    ArrayList<ContourAnalyzer> analyzers = new ArrayList<>();
+    ArrayList<AnalyzedContour> analyzedContours = new ArrayList<>();
+    ArrayList<ForkJoinTask<?>> analysisTasks = new ArrayList<>();
+    MatOfPoint regionMat = new MatOfPoint();
+    List<MatOfPoint> listHolderOfRegionMat = Collections.singletonList(regionMat);
+
     @Override
     public void onViewportTapped()
     {
@@ -124,299 +284,534 @@ public class StoneOrientationAnalysisPipeline extends OpenCvPipeline
         stageNum = nextStageNum;
     }
 
+    /**
+     * Process frames at a lower resolution. Can be called from any thread;
+     * takes effect on the next frame.
+     *
+     * @param factor how much to shrink each side of the frame by: 1 (don't), 2, 4 or 8
+     */
+    public void setDownscale(int factor)
+    {
+        FrameScaler.checkFactor(factor);
+        requestedDownscale = factor;
+    }
+
+    public StoneOrientationAnalysisPipeline()
+    {
+        graph.setTimer(timer);
+    }
+
+    public StageTimer getStageTimer()
+    {
+        return timer;
+    }
+
     @Override
     public Mat processFrame(Mat input)
     {
-        // We'll be updating this with new data below
-        internalStoneList.clear();
+        this.input = input;
+        frameCaptureTimeNanos = System.nanoTime();
+        timer.beginFrame();
+        graph.newFrame();
+
+        int downscale = requestedDownscale;
+
+        if(noiseReduction == null || downscale != scaler.getFactor())
+        {
+            // The noise reduction elements are sized for the full frame
+            scaler.setFactor(downscale);
+
+            if(noiseReduction != null)
+            {
+                noiseReduction.release();
+            }
+
+            noiseReduction = buildNoiseReduction();
+        }
+
+        long downscaleStart = timer.start();
+        scaledInput = scaler.downscale(input);
+        timer.stop(downscaleTimerStage, downscaleStart);
+
+        // Read this once, since it can be changed out from under us by the UI thread
+        Stage stage = stages[stageNum];
+
+        // The contours view is drawn on a copy of the input, so it has to be made
+        // before the analysis starts annotating the input itself
+        if(stage == Stage.CONTOURS)
+        {
+            graph.require(contoursOverlayStage);
+        }
 
         /*
          * Run the image processing
          */
-        for(MatOfPoint contour : findContours(input))
-        {
-            analyzeContour(contour, input);
-        }
+        graph.require(analysisStage);
 
-        clientStoneList = new ArrayList<>(internalStoneList);
+        publishStones();
 
         /*
          * Decide which buffer to send to the viewport
          */
-        switch (stages[stageNum])
+        Mat output = input;
+
+        switch (stage)
         {
             case Cb:
             {
-                return cbMat;
+                output = graph.require(cbStage);
+                break;
             }
 
             case FINAL:
             {
-                return input;
+                output = input;
+                break;
             }
 
             case MASK:
             {
-                return thresholdMat;
+                output = graph.require(maskStage);
+                break;
             }
 
             case MASK_NR:
             {
-                return morphedThreshold;
+                output = graph.require(maskNrStage);
+                break;
             }
 
             case CONTOURS:
             {
-                return contoursOnPlainImageMat;
+                output = graph.require(contoursOverlayStage);
+                break;
             }
         }
 
-        return input;
+        timer.endFrame();
+        return output;
     }
 
-    public ArrayList<AnalyzedStone> getDetectedStones()
+    void publishStones()
     {
-        return clientStoneList;
+        synchronized (stoneSnapshotLock)
+        {
+            StoneSnapshot published = backSnapshot;
+            backSnapshot = readySnapshot;
+            readySnapshot = published;
+            readySnapshotIsNew = true;
+        }
     }
 
-    ArrayList<MatOfPoint> findContours(Mat input)
+    /**
+     * Get the stones from the most recently processed frame. The snapshot returned is
+     * not touched by the vision thread until the next call to this method, so it must
+     * only be called from one thread (i.e. the OpMode), and the snapshot must not be
+     * held on to across calls. Use the sequence number to tell whether it's a new frame,
+     * and the age to tell whether it's too stale to act on.
+     *
+     * @return the stones from the latest frame
+     */
+    public StoneSnapshot getStones()
     {
-        // A list we'll be using to store the contours we find
-        ArrayList<MatOfPoint> contoursList = new ArrayList<>();
+        synchronized (stoneSnapshotLock)
+        {
+            if(readySnapshotIsNew)
+            {
+                StoneSnapshot latest = readySnapshot;
+                readySnapshot = clientSnapshot;
+                clientSnapshot = latest;
+                readySnapshotIsNew = false;
+            }
+
+            return clientSnapshot;
+        }
+    }
 
-        // Convert the input image to YCrCb color space, then extract the Cb channel
-        Imgproc.cvtColor(input, cbMat, Imgproc.COLOR_RGB2YCrCb);
+    void extractCb()
+    {
+        // Convert the (possibly downscaled) input image to YCrCb color space, then extract the Cb channel
+        Imgproc.cvtColor(scaledInput, cbMat, Imgproc.COLOR_RGB2YCrCb);
         Core.extractChannel(cbMat, cbMat, CB_CHAN_IDX);
+    }
 
-        // Threshold the Cb channel to form a mask, then run some noise reduction
+    void thresholdCb()
+    {
+        // Threshold the Cb channel to form a mask. Noise reduction is its own stage (MASK_NR)
         Imgproc.threshold(cbMat, thresholdMat, CB_CHAN_MASK_THRESHOLD, 255, Imgproc.THRESH_BINARY_INV);
-        morphMask(thresholdMat, morphedThreshold);
+    }
+
+    void findContours()
+    {
+        // Free last frame's contours now, rather than leaving their native memory for the GC
+        for(MatOfPoint contour : contoursList)
+        {
+            contour.release();
+        }
+        contoursList.clear();
 
         // Ok, now actually look for the contours! We only look for external contours.
-        Imgproc.findContours(morphedThreshold, contoursList, new Mat(), Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_NONE);
+        Imgproc.findContours(morphedThreshold, contoursList, hierarchyMat, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_NONE);
+
+        // If we found them in a downscaled frame, map them back to the full frame
+        for(MatOfPoint contour : contoursList)
+        {
+            scaler.toFull(contour);
+        }
+    }
 
+    void drawContours()
+    {
         // We do draw the contours we find, but not to the main input buffer.
         input.copyTo(contoursOnPlainImageMat);
         Imgproc.drawContours(contoursOnPlainImageMat, contoursList, -1, BLUE, CONTOUR_LINE_THICKNESS, 8);
-
-        return contoursList;
     }
 
-    void morphMask(Mat input, Mat output)
+    void analyzeContours()
     {
-        /*
-         * Apply some erosion and dilation for noise reduction
-         */
-
-        Imgproc.erode(input, output, erodeElement);
-        Imgproc.erode(output, output, erodeElement);
+        // We'll be filling this in with new data below
+        backSnapshot.clear(++frameSequence, frameCaptureTimeNanos);
 
-        Imgproc.dilate(output, output, dilateElement);
-        Imgproc.dilate(output, output, dilateElement);
-    }
+        // Copy the contours into a primitive buffer once, so the analysis below
+        // doesn't need to create a Point object for every point of every contour
+        contourBuffer.clear();
 
-    void analyzeContour(MatOfPoint contour, Mat input)
-    {
-        // Transform the contour to a different format
-        Point[] points = contour.toArray();
-        MatOfPoint2f contour2f = new MatOfPoint2f(contour.toArray());
+        for(MatOfPoint contour : contoursList)
+        {
+            contourBuffer.add(contour);
+        }
 
-        // Do a rect fit to the contour, and draw it on the screen
-        RotatedRect rotatedRectFitToContour = Imgproc.minAreaRect(contour2f);
-        drawRotatedRect(rotatedRectFitToContour, input);
+        int numContours = contourBuffer.size();
 
-        // The angle OpenCV gives us can be ambiguous, so look at the shape of
-        // the rectangle to fix that.
-        double rotRectAngle = rotatedRectFitToContour.angle;
-        if (rotatedRectFitToContour.size.width < rotatedRectFitToContour.size.height)
+        while(analyzedContours.size() < numContours)
         {
-            rotRectAngle += 90;
+            analyzedContours.add(new AnalyzedContour());
         }
 
-        // Figure out the slope of a line which would run through the middle, lengthwise
-        // (Slope as in m from 'Y = mx + b')
-        double midlineSlope = Math.tan(Math.toRadians(rotRectAngle));
+        /*
+         * Compute phase: each worker takes every Nth contour. With only one
+         * contour (or parallelism turned off), it's not worth the handoff.
+         */
+        int numWorkers = parallelAnalysis ? Math.min(numContours, VisionWorkerPool.PARALLELISM) : 1;
+        numWorkers = Math.max(numWorkers, 1);
 
-        // We're going to split the this contour into two regions: one region for the points
-        // which fall above the midline, and one region for the points which fall below.
-        // We'll need a place to store the points as we split them, so we make ArrayLists
-        ArrayList<Point> aboveMidline = new ArrayList<>(points.length/2);
-        ArrayList<Point> belowMidline = new ArrayList<>(points.length/2);
+        while(analyzers.size() < numWorkers)
+        {
+            analyzers.add(new ContourAnalyzer());
+        }
 
-        // Ok, now actually split the contour into those two regions we discussed earlier!
-        for(Point p : points)
+        if(numWorkers == 1)
         {
-            if(rotatedRectFitToContour.center.y - p.y > midlineSlope * (rotatedRectFitToContour.center.x - p.x))
+            analyzeStrided(analyzers.get(0), 0, 1, numContours);
+        }
+        else
+        {
+            analysisTasks.clear();
+
+            for(int w = 0; w < numWorkers; w++)
             {
-                aboveMidline.add(p);
+                final ContourAnalyzer analyzer = analyzers.get(w);
+                final int first = w;
+                final int stride = numWorkers;
+
+                analysisTasks.add(VisionWorkerPool.get().submit(() -> analyzeStrided(analyzer, first, stride, numContours)));
             }
-            else
+
+            for(ForkJoinTask<?> task : analysisTasks)
             {
-                belowMidline.add(p);
+                task.join();
             }
         }
 
-        // Now that we've split the contour into those two regions, we analyze each
-        // region independently.
-        ContourRegionAnalysis aboveMidlineMetrics = analyzeContourRegion(aboveMidline);
-        ContourRegionAnalysis belowMidlineMetrics = analyzeContourRegion(belowMidline);
+        /*
+         * Overlay phase: draw everything, and collect the stones, in contour order
+         */
+        for(int i = 0; i < numContours; i++)
+        {
+            AnalyzedContour analyzed = analyzedContours.get(i);
+            drawAnalyzedContour(analyzed, input);
+
+            if(analyzed.isStone)
+            {
+                backSnapshot.add(analyzed.rect.center.x, analyzed.rect.center.y,
+                        analyzed.angle, contourBuffer.area(i), analyzed.orientation);
+            }
+        }
+    }
 
-        if(aboveMidlineMetrics == null || belowMidlineMetrics == null)
+    void analyzeStrided(ContourAnalyzer analyzer, int first, int stride, int numContours)
+    {
+        analyzer.regionBuffer.clear();
+
+        for(int i = first; i < numContours; i += stride)
         {
-            return; // Get out of dodge
+            analyzer.analyzeContour(contourBuffer, i, analyzedContours.get(i));
         }
+    }
 
-        // We're going to draw line from the center of the bounding rect, to outside the bounding rect, in the
-        // direction of the side of the stone with the nubs.
-        Point displOfOrientationLinePoint2 = computeDisplacementForSecondPointOfStoneOrientationLine(rotatedRectFitToContour, rotRectAngle);
+    /**
+     * Enable or disable analyzing contours in parallel on the {@link VisionWorkerPool}
+     *
+     * @param enabled whether to analyze in parallel
+     */
+    public void setParallelAnalysis(boolean enabled)
+    {
+        parallelAnalysis = enabled;
+    }
 
+    void morphMask(Mat input, Mat output)
+    {
         /*
-         * If the difference in the densities of the two regions exceeds the threshold,
-         * then we assume the stone is on its side. Otherwise, if the difference is inside
-         * of the threshold, we assume it's upright.
+         * Apply some erosion and dilation for noise reduction. Each run
+         * of erosions (and of dilations) is merged into a single native
+         * call; see BinaryMorphology
          */
-        if(aboveMidlineMetrics.density < belowMidlineMetrics.density - DENSITY_UPRIGHT_THRESHOLD)
-        {
-            /*
-             * Assume the stone is on its side, with the top contour region being the
-             * one which contains the nubs
-             */
+        noiseReduction.apply(input, output);
+    }
 
-            // Draw that line we were just talking about
-            Imgproc.line(
-                    input, // Buffer we're drawing on
-                    new Point( // First point of the line (center of bounding rect)
-                            rotatedRectFitToContour.center.x,
-                            rotatedRectFitToContour.center.y),
-                    new Point( // Second point of the line (center - displacement we calculated earlier)
-                            rotatedRectFitToContour.center.x-displOfOrientationLinePoint2.x,
-                            rotatedRectFitToContour.center.y-displOfOrientationLinePoint2.y),
-                    PURPLE, // Color we're drawing the line in
-                    2); // Thickness of the line we're drawing
+    BinaryMorphology buildNoiseReduction()
+    {
+        int erodeSize = scaler.toScaled(ERODE_ELEMENT_SIZE);
+        int dilateSize = scaler.toScaled(DILATE_ELEMENT_SIZE);
 
-            // We outline the contour region that we assumed to be the side with the nubs
-            Imgproc.drawContours(input, aboveMidlineMetrics.listHolderOfMatOfPoint, -1, TEAL, 2, 8);
+        return new BinaryMorphology()
+                .erode(erodeSize, erodeSize, NOISE_REDUCTION_ITERATIONS)
+                .dilate(dilateSize, dilateSize, NOISE_REDUCTION_ITERATIONS);
+    }
 
-            // Compute the absolute angle of the stone
-            double angle = -(rotRectAngle-90);
+    /*
+     * What analyzing one contour produced: the stone (if it could
+     * tell what the stone was doing), and what to draw for it
+     */
+    static class AnalyzedContour
+    {
+        RotatedRect rect;
 
-            // "Tag" the stone with text stating its absolute angle
-            drawTagText(rotatedRectFitToContour, Integer.toString((int) Math.round(angle))+" deg", input);
+        boolean isStone;
+        StoneOrientation orientation;
+        double angle;
 
-            AnalyzedStone analyzedStone = new AnalyzedStone();
-            analyzedStone.angle = angle;
-            analyzedStone.orientation = StoneOrientation.NOT_UPRIGHT;
-            internalStoneList.add(analyzedStone);
-        }
-        else if(belowMidlineMetrics.density < aboveMidlineMetrics.density - DENSITY_UPRIGHT_THRESHOLD)
-        {
-            /*
-             * Assume the stone is on its side, with the bottom contour region being the
-             * one which contains the nubs
-             */
+        // The line pointing towards the nubs, if the stone is on its side
+        boolean hasOrientationLine;
+        Point orientationLineStart = new Point();
+        Point orientationLineEnd = new Point();
 
-            // Draw that line we were just talking about
-            Imgproc.line(
-                    input, // Buffer we're drawing on
-                    new Point( // First point of the line (center + displacement we calculated earlier)
-                            rotatedRectFitToContour.center.x+displOfOrientationLinePoint2.x,
-                            rotatedRectFitToContour.center.y+displOfOrientationLinePoint2.y),
-                    new Point( // Second point of the line (center of bounding rect)
-                            rotatedRectFitToContour.center.x,
-                            rotatedRectFitToContour.center.y),
-                    PURPLE, // Color we're drawing the line in
-                    2); // Thickness of the line we're drawing
+        // The contour region with the nubs, if the stone is on its side
+        ContourBuffer nubRegionBuffer;
+        int nubRegion = -1;
 
-            // We outline the contour region that we assumed to be the side with the nubs
-            Imgproc.drawContours(input, belowMidlineMetrics.listHolderOfMatOfPoint, -1, TEAL, 2, 8);
+        String tagText;
 
-            // Compute the absolute angle of the stone
-            double angle = -(rotRectAngle-270);
+        void reset()
+        {
+            rect = null;
+            isStone = false;
+            hasOrientationLine = false;
+            nubRegionBuffer = null;
+            nubRegion = -1;
+            tagText = null;
+        }
+    }
 
-            // "Tag" the stone with text stating its absolute angle
-            drawTagText(rotatedRectFitToContour,  Integer.toString((int) Math.round(angle))+" deg", input);
+    void drawAnalyzedContour(AnalyzedContour analyzed, Mat drawOn)
+    {
+        drawRotatedRect(analyzed.rect, drawOn);
 
-            AnalyzedStone analyzedStone = new AnalyzedStone();
-            analyzedStone.angle = angle;
-            analyzedStone.orientation = StoneOrientation.NOT_UPRIGHT;
-            internalStoneList.add(analyzedStone);
-        }
-        else
+        if(analyzed.hasOrientationLine)
         {
-            /*
-             * Assume the stone is upright
-             */
+            // Draw the line from the center of the bounding rect, towards the side with the nubs
+            Imgproc.line(drawOn, analyzed.orientationLineStart, analyzed.orientationLineEnd, PURPLE, 2);
+        }
 
-            drawTagText(rotatedRectFitToContour, "UPRIGHT", input);
+        if(analyzed.nubRegion >= 0)
+        {
+            // We outline the contour region that we assumed to be the side with the nubs.
+            // drawContours() requires a LIST of contours (there's no singular drawContour()
+            // method), so we keep a list around holding just the one Mat
+            analyzed.nubRegionBuffer.toMat(analyzed.nubRegion, regionMat);
+            Imgproc.drawContours(drawOn, listHolderOfRegionMat, -1, TEAL, 2, 8);
+        }
 
-            AnalyzedStone analyzedStone = new AnalyzedStone();
-            analyzedStone.angle = rotRectAngle;
-            analyzedStone.orientation = StoneOrientation.UPRIGHT;
-            internalStoneList.add(analyzedStone);
+        if(analyzed.tagText != null)
+        {
+            // "Tag" the stone with text stating its absolute angle (or that it's upright)
+            drawTagText(analyzed.rect, analyzed.tagText, drawOn);
         }
     }
 
-    static class ContourRegionAnalysis
+    /*
+     * Analyzes contours, without drawing anything. Each worker thread has its own,
+     * since these hold the scratch buffers (and Mats) used along the way.
+     */
+    static class ContourAnalyzer
     {
-        /*
-         * This class holds the results of analyzeContourRegion()
-         */
+        ContourBuffer regionBuffer = new ContourBuffer();
+        ContourBuffer contourCopy = new ContourBuffer();
+        MatOfPoint2f contour2f = new MatOfPoint2f();
+        ContourRegionAnalysis aboveMidlineMetrics = new ContourRegionAnalysis();
+        ContourRegionAnalysis belowMidlineMetrics = new ContourRegionAnalysis();
 
-        double hullArea;
-        double contourArea;
-        double density;
-        List<MatOfPoint> listHolderOfMatOfPoint;
-    }
-
-    static ContourRegionAnalysis analyzeContourRegion(ArrayList<Point> contourPoints)
-    {
-        // drawContours() requires a LIST of contours (there's no singular drawContour()
-        // method), so we have to make a list, even though we're only going to use a single
-        // position in it...
-        MatOfPoint matOfPoint = new MatOfPoint();
-        matOfPoint.fromList(contourPoints);
-        List<MatOfPoint> listHolderOfMatOfPoint = Arrays.asList(matOfPoint);
-
-        // Compute the convex hull of the contour
-        MatOfInt hullMatOfInt = new MatOfInt();
-        Imgproc.convexHull(matOfPoint, hullMatOfInt);
-
-        // Was the convex hull calculation successful?
-        if(hullMatOfInt.toArray().length > 0)
-        {
-            // The convex hull calculation tells us the INDEX of the points which
-            // which were passed in eariler which form the convex hull. That's all
-            // well and good, but now we need filter out that original list to find
-            // the actual POINTS which form the convex hull
-            Point[] hullPoints = new Point[hullMatOfInt.rows()];
-            List<Integer> hullContourIdxList = hullMatOfInt.toList();
-
-            for (int i = 0; i < hullContourIdxList.size(); i++)
+        void analyzeContour(ContourBuffer contours, int contour, AnalyzedContour out)
+        {
+            out.reset();
+
+            // Transform the contour to a different format. The shared buffer is only ever
+            // read from here, since converting it to a Mat uses its scratch space
+            contourCopy.clear();
+            int copy = contourCopy.add(contours, contour);
+            contourCopy.toMat(copy, contour2f);
+
+            // Do a rect fit to the contour; it gets drawn in the overlay phase
+            RotatedRect rotatedRectFitToContour = Imgproc.minAreaRect(contour2f);
+            out.rect = rotatedRectFitToContour;
+
+            // The angle OpenCV gives us can be ambiguous, so look at the shape of
+            // the rectangle to fix that.
+            double rotRectAngle = rotatedRectFitToContour.angle;
+            if (rotatedRectFitToContour.size.width < rotatedRectFitToContour.size.height)
             {
-                hullPoints[i] = contourPoints.get(hullContourIdxList.get(i));
+                rotRectAngle += 90;
             }
 
-            ContourRegionAnalysis analysis = new ContourRegionAnalysis();
-            analysis.listHolderOfMatOfPoint = listHolderOfMatOfPoint;
+            // Figure out the slope of a line which would run through the middle, lengthwise
+            // (Slope as in m from 'Y = mx + b')
+            double midlineSlope = Math.tan(Math.toRadians(rotRectAngle));
+
+            // We're going to split the this contour into two regions: one region for the points
+            // which fall above the midline, and one region for the points which fall below.
+            // Both regions get stored in the region buffer, one after the other.
+            int aboveMidline = regionBuffer.size();
+            int belowMidline = aboveMidline + 1;
 
-            // Compute the hull area
-            analysis.hullArea = Imgproc.contourArea(new MatOfPoint(hullPoints));
+            // Ok, now actually split the contour into those two regions we discussed earlier!
+            contours.splitByLine(contour,
+                    rotatedRectFitToContour.center.x, rotatedRectFitToContour.center.y,
+                    midlineSlope, regionBuffer, regionBuffer);
 
-            // Compute the original contour area
-            analysis.contourArea = Imgproc.contourArea(listHolderOfMatOfPoint.get(0));
+            // Now that we've split the contour into those two regions, we analyze each
+            // region independently.
+            if(!analyzeContourRegion(aboveMidline, aboveMidlineMetrics) || !analyzeContourRegion(belowMidline, belowMidlineMetrics))
+            {
+                return; // Get out of dodge
+            }
 
-            // Compute the contour density. This is the ratio of the contour area to the
-            // area of the convex hull formed by the contour
-            analysis.density = analysis.contourArea / analysis.hullArea;
+            // We're going to draw line from the center of the bounding rect, to outside the bounding rect, in the
+            // direction of the side of the stone with the nubs.
+            Point displOfOrientationLinePoint2 = computeDisplacementForSecondPointOfStoneOrientationLine(rotatedRectFitToContour, rotRectAngle);
 
-            return analysis;
+            /*
+             * If the difference in the densities of the two regions exceeds the threshold,
+             * then we assume the stone is on its side. Otherwise, if the difference is inside
+             * of the threshold, we assume it's upright.
+             */
+            if(aboveMidlineMetrics.density < belowMidlineMetrics.density - DENSITY_UPRIGHT_THRESHOLD)
+            {
+                /*
+                 * Assume the stone is on its side, with the top contour region being the
+                 * one which contains the nubs
+                 */
+
+                // The line runs from the center of the bounding rect, to the center - the displacement we calculated earlier
+                out.hasOrientationLine = true;
+                out.orientationLineStart.set(new double[] {rotatedRectFitToContour.center.x, rotatedRectFitToContour.center.y});
+                out.orientationLineEnd.set(new double[] {
+                        rotatedRectFitToContour.center.x-displOfOrientationLinePoint2.x,
+                        rotatedRectFitToContour.center.y-displOfOrientationLinePoint2.y});
+
+                // We outline the contour region that we assumed to be the side with the nubs
+                out.nubRegionBuffer = regionBuffer;
+                out.nubRegion = aboveMidline;
+
+                // Compute the absolute angle of the stone
+                double angle = -(rotRectAngle-90);
+                out.tagText = Integer.toString((int) Math.round(angle))+" deg";
+
+                out.isStone = true;
+                out.angle = angle;
+                out.orientation = StoneOrientation.NOT_UPRIGHT;
+            }
+            else if(belowMidlineMetrics.density < aboveMidlineMetrics.density - DENSITY_UPRIGHT_THRESHOLD)
+            {
+                /*
+                 * Assume the stone is on its side, with the bottom contour region being the
+                 * one which contains the nubs
+                 */
+
+                // The line runs from the center + the displacement we calculated earlier, to the center of the bounding rect
+                out.hasOrientationLine = true;
+                out.orientationLineStart.set(new double[] {
+                        rotatedRectFitToContour.center.x+displOfOrientationLinePoint2.x,
+                        rotatedRectFitToContour.center.y+displOfOrientationLinePoint2.y});
+                out.orientationLineEnd.set(new double[] {rotatedRectFitToContour.center.x, rotatedRectFitToContour.center.y});
+
+                // We outline the contour region that we assumed to be the side with the nubs
+                out.nubRegionBuffer = regionBuffer;
+                out.nubRegion = belowMidline;
+
+                // Compute the absolute angle of the stone
+                double angle = -(rotRectAngle-270);
+                out.tagText = Integer.toString((int) Math.round(angle))+" deg";
+
+                out.isStone = true;
+                out.angle = angle;
+                out.orientation = StoneOrientation.NOT_UPRIGHT;
+            }
+            else
+            {
+                /*
+                 * Assume the stone is upright
+                 */
+
+                out.tagText = "UPRIGHT";
+
+                out.isStone = true;
+                out.angle = rotRectAngle;
+                out.orientation = StoneOrientation.UPRIGHT;
+            }
         }
-        else
+
+        boolean analyzeContourRegion(int region, ContourRegionAnalysis analysis)
         {
-            return null;
+            // Compute the convex hull of the region. It goes on the end of the
+            // region buffer, as a contour of its own.
+            int hull = regionBuffer.convexHull(region, regionBuffer);
+
+            // Was the convex hull calculation successful?
+            if(regionBuffer.pointCount(hull) > 0)
+            {
+                analysis.region = region;
+
+                // Compute the hull area
+                analysis.hullArea = regionBuffer.area(hull);
+
+                // Compute the original contour area
+                analysis.contourArea = regionBuffer.area(region);
+
+                // Compute the contour density. This is the ratio of the contour area to the
+                // area of the convex hull formed by the contour
+                analysis.density = analysis.contourArea / analysis.hullArea;
+
+                return true;
+            }
+            else
+            {
+                return false;
+            }
         }
     }
 
+    static class ContourRegionAnalysis
+    {
+        /*
+         * This class holds the results of analyzeContourRegion()
+         */
+
+        double hullArea;
+        double contourArea;
+        double density;
+        int region;
+    }
+
     static Point computeDisplacementForSecondPointOfStoneOrientationLine(RotatedRect rect, double unambiguousAngle)
     {
         // Note: we return a point, but really it's not a point in space, we're
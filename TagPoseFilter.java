@@ -0,0 +1,116 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.openftc.apriltag.AprilTagDetection;
+
+/*
+ * A per-tag alpha-beta filter over the 6DOF pose reported by AprilTag.
+ *
+ * Each measurement nudges both the pose and its rate of change towards what
+ * was observed, which lets us extrapolate a reasonable pose for the frames in
+ * between detector runs without having to run the detector on them.
+ */
+class TagPoseFilter
+{
+    // Indices into the state arrays
+    static final int X = 0, Y = 1, Z = 2, YAW = 3, PITCH = 4, ROLL = 5;
+    static final int STATE_SIZE = 6;
+
+    final int id;
+
+    // The filtered pose, and its rate of change per second
+    final double[] pose = new double[STATE_SIZE];
+    final double[] velocity = new double[STATE_SIZE];
+
+    // Where we think the tag is now, written by predict()
+    final double[] predicted = new double[STATE_SIZE];
+
+    // The most recent measurement, for the things we don't filter (corners, margin, etc.)
+    AprilTagDetection lastMeasurement;
+    long lastMeasurementNanos;
+
+    TagPoseFilter(AprilTagDetection detection, long nowNanos)
+    {
+        id = detection.id;
+        readPose(detection, pose);
+        System.arraycopy(pose, 0, predicted, 0, STATE_SIZE);
+        lastMeasurement = detection;
+        lastMeasurementNanos = nowNanos;
+    }
+
+    void measure(AprilTagDetection detection, long nowNanos, double alpha, double beta)
+    {
+        double dt = (nowNanos - lastMeasurementNanos) / 1e9;
+        lastMeasurement = detection;
+        lastMeasurementNanos = nowNanos;
+
+        if(dt <= 0)
+        {
+            readPose(detection, pose);
+            return;
+        }
+
+        double[] measured = predicted; // Safe to clobber, it's rewritten on the next predict()
+        readPose(detection, measured);
+
+        for(int i = 0; i < STATE_SIZE; i++)
+        {
+            double estimate = pose[i] + velocity[i]*dt;
+            double residual = measured[i] - estimate;
+
+            if(i >= YAW)
+            {
+                residual = wrapAngle(residual);
+            }
+
+            pose[i] = estimate + alpha*residual;
+            velocity[i] += (beta/dt)*residual;
+
+            if(i >= YAW)
+            {
+                pose[i] = wrapAngle(pose[i]);
+            }
+        }
+
+        System.arraycopy(pose, 0, predicted, 0, STATE_SIZE);
+    }
+
+    void predict(long nowNanos)
+    {
+        double dt = (nowNanos - lastMeasurementNanos) / 1e9;
+
+        for(int i = 0; i < STATE_SIZE; i++)
+        {
+            predicted[i] = pose[i] + velocity[i]*dt;
+
+            if(i >= YAW)
+            {
+                predicted[i] = wrapAngle(predicted[i]);
+            }
+        }
+    }
+
+    static void readPose(AprilTagDetection detection, double[] out)
+    {
+        out[X] = detection.pose.x;
+        out[Y] = detection.pose.y;
+        out[Z] = detection.pose.z;
+        out[YAW] = detection.pose.yaw;
+        out[PITCH] = detection.pose.pitch;
+        out[ROLL] = detection.pose.roll;
+    }
+
+    static double wrapAngle(double angle)
+    {
+        while(angle > Math.PI)
+        {
+            angle -= 2*Math.PI;
+        }
+
+        while(angle < -Math.PI)
+        {
+            angle += 2*Math.PI;
+        }
+
+        return angle;
+    }
+}
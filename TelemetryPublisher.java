@@ -0,0 +1,378 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.firstinspires.ftc.robotcore.external.Telemetry;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.WeakHashMap;
+
+/*
+ * Moves telemetry off of the vision thread.
+ *
+ * Pipelines used to String.format() and telemetry.update() on every single
+ * frame. Instead, a pipeline now registers its fields once up front, writes
+ * plain primitives into them each frame, and commits. A background thread
+ * wakes up at a fixed rate (10Hz by default), formats whatever was most
+ * recently committed into reused StringBuilders, and sends it off. Any frames
+ * committed in between flushes are simply coalesced.
+ *
+ * There is one publisher per Telemetry instance, shared by every pipeline
+ * using it; grab it with get(). Each pipeline adds its own Section, so that
+ * pipelines running on different threads never commit each other's fields.
+ *
+ * Nothing here holds on to a Telemetry. Once an OpMode is over and its
+ * Telemetry has been collected, its publisher drops out of the map and the
+ * flush thread exits by itself, so close() is optional.
+ */
+public final class TelemetryPublisher
+{
+    public static double DEFAULT_RATE_HZ = 10;
+
+    private static final WeakHashMap<Telemetry, TelemetryPublisher> publishers = new WeakHashMap<>();
+
+    // Weak, since the map's value mustn't keep its own key alive
+    private final WeakReference<Telemetry> telemetry;
+    // Copy-on-write, so the flush thread can walk it without holding the lock
+    private volatile Section[] sections = new Section[0];
+    private final Object lock = new Object();
+    private volatile double rateHz = DEFAULT_RATE_HZ;
+    private volatile boolean running = true;
+    private boolean dirty = false;
+    private final Thread flushThread;
+
+    private TelemetryPublisher(Telemetry telemetry)
+    {
+        this.telemetry = new WeakReference<>(telemetry);
+
+        flushThread = new Thread(this::flushLoop, "TelemetryPublisher");
+        flushThread.setDaemon(true);
+        flushThread.start();
+    }
+
+    /**
+     * Get the publisher for a given Telemetry, creating it if this is the first request.
+     *
+     * @param telemetry the telemetry to publish to
+     * @return the shared publisher for that telemetry
+     */
+    public static TelemetryPublisher get(Telemetry telemetry)
+    {
+        if(telemetry == null)
+        {
+            throw new IllegalArgumentException("telemetry must not be null");
+        }
+
+        synchronized (publishers)
+        {
+            TelemetryPublisher publisher = publishers.get(telemetry);
+
+            if(publisher == null)
+            {
+                publisher = new TelemetryPublisher(telemetry);
+                publishers.put(telemetry, publisher);
+            }
+
+            return publisher;
+        }
+    }
+
+    /**
+     * Add a new section of fields. Sections are displayed in the order they were added.
+     *
+     * @return the new section
+     */
+    public Section addSection()
+    {
+        synchronized (lock)
+        {
+            Section section = new Section();
+            sections = Arrays.copyOf(sections, sections.length + 1);
+            sections[sections.length - 1] = section;
+            return section;
+        }
+    }
+
+    /**
+     * Set how often telemetry actually gets sent
+     *
+     * @param rateHz flushes per second
+     */
+    public void setRateHz(double rateHz)
+    {
+        this.rateHz = rateHz;
+    }
+
+    /**
+     * Stop the flush thread and forget this publisher right away, rather than once
+     * the telemetry has been collected
+     */
+    public void close()
+    {
+        running = false;
+        flushThread.interrupt();
+
+        Telemetry telemetry = this.telemetry.get();
+
+        if(telemetry == null)
+        {
+            // Already dropped out of the map
+            return;
+        }
+
+        synchronized (publishers)
+        {
+            if(publishers.get(telemetry) == this)
+            {
+                publishers.remove(telemetry);
+            }
+        }
+    }
+
+    private void flushLoop()
+    {
+        while(running)
+        {
+            try
+            {
+                Thread.sleep((long) (1000 / rateHz));
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            boolean haveNewData;
+
+            synchronized (lock)
+            {
+                haveNewData = dirty;
+                dirty = false;
+
+                // Grab a consistent copy of everything committed so far
+                for(Section section : sections)
+                {
+                    section.snapshot();
+                }
+            }
+
+            Telemetry telemetry = this.telemetry.get();
+
+            if(telemetry == null)
+            {
+                // Whoever was using it is long gone
+                return;
+            }
+
+            if(!haveNewData)
+            {
+                continue;
+            }
+
+            for(Section section : sections)
+            {
+                section.send(telemetry);
+            }
+
+            telemetry.update();
+        }
+    }
+
+    /*
+     * A group of fields owned by a single pipeline. Fields may only be written,
+     * and the section committed, from that pipeline's thread.
+     */
+    public final class Section
+    {
+        private volatile Field[] fields = new Field[0];
+
+        private Section() {}
+
+        /**
+         * Add a numeric field
+         *
+         * @param caption the caption to display the value under
+         * @param decimals how many decimal places to show
+         * @param suffix text displayed after the value (e.g. units); may be empty
+         * @return the new field
+         */
+        public Field addNumber(String caption, int decimals, String suffix)
+        {
+            return addField(caption, decimals, suffix, false);
+        }
+
+        public Field addNumber(String caption, int decimals)
+        {
+            return addNumber(caption, decimals, "");
+        }
+
+        /**
+         * Add a field which displays an object's toString(), e.g. an enum
+         *
+         * @param caption the caption to display the value under
+         * @return the new field
+         */
+        public Field addText(String caption)
+        {
+            return addField(caption, 0, "", true);
+        }
+
+        private Field addField(String caption, int decimals, String suffix, boolean text)
+        {
+            synchronized (lock)
+            {
+                Field field = new Field(caption, decimals, suffix, text);
+                fields = Arrays.copyOf(fields, fields.length + 1);
+                fields[fields.length - 1] = field;
+                return field;
+            }
+        }
+
+        /**
+         * Make everything written to this section's fields since the last commit
+         * visible to the next flush
+         */
+        public void commit()
+        {
+            synchronized (lock)
+            {
+                for(Field field : fields)
+                {
+                    field.committedValue = field.pendingValue;
+                    field.committedText = field.pendingText;
+                    field.committedVisible = field.pendingVisible;
+                }
+
+                dirty = true;
+            }
+        }
+
+        void snapshot()
+        {
+            for(Field field : fields)
+            {
+                field.flushValue = field.committedValue;
+                field.flushText = field.committedText;
+                field.flushVisible = field.committedVisible;
+            }
+        }
+
+        void send(Telemetry telemetry)
+        {
+            for(Field field : fields)
+            {
+                if(field.flushVisible)
+                {
+                    telemetry.addData(field.caption, field.format());
+                }
+            }
+        }
+    }
+
+    public static final class Field
+    {
+        final String caption;
+        final int decimals;
+        final String suffix;
+        final boolean text;
+
+        // Written by the owning pipeline
+        private double pendingValue;
+        private Object pendingText;
+        private boolean pendingVisible = true;
+
+        // Guarded by the publisher's lock
+        private double committedValue;
+        private Object committedText;
+        private boolean committedVisible = true;
+
+        // Only touched by the flush thread
+        private double flushValue;
+        private Object flushText;
+        private boolean flushVisible;
+        private final StringBuilder builder = new StringBuilder();
+
+        private Field(String caption, int decimals, String suffix, boolean text)
+        {
+            this.caption = caption;
+            this.decimals = decimals;
+            this.suffix = suffix;
+            this.text = text;
+        }
+
+        public void set(double value)
+        {
+            pendingValue = value;
+            pendingVisible = true;
+        }
+
+        public void set(Object value)
+        {
+            pendingText = value;
+            pendingVisible = true;
+        }
+
+        /*
+         * Hide this field until it's next set, e.g. for a tag that's no longer in view
+         */
+        public void hide()
+        {
+            pendingVisible = false;
+        }
+
+        String format()
+        {
+            builder.setLength(0);
+
+            if(text)
+            {
+                builder.append(flushText);
+            }
+            else
+            {
+                appendFixed(builder, flushValue, decimals);
+            }
+
+            builder.append(suffix);
+            return builder.toString();
+        }
+    }
+
+    /*
+     * Appends a number with a fixed number of decimal places, without
+     * going through String.format() and its temporary objects
+     */
+    static void appendFixed(StringBuilder builder, double value, int decimals)
+    {
+        if(Double.isNaN(value) || Double.isInfinite(value))
+        {
+            builder.append(value);
+            return;
+        }
+
+        long scale = 1;
+        for(int i = 0; i < decimals; i++)
+        {
+            scale *= 10;
+        }
+
+        long scaled = Math.round(Math.abs(value) * scale);
+
+        if(value < 0 && scaled != 0)
+        {
+            builder.append('-');
+        }
+
+        builder.append(scaled / scale);
+
+        if(decimals > 0)
+        {
+            builder.append('.');
+
+            long fraction = scaled % scale;
+            for(long digit = scale / 10; digit > 0; digit /= 10)
+            {
+                builder.append((char) ('0' + (fraction / digit) % 10));
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.firstinspires.ftc.teamcode;
+
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * A single ForkJoinPool shared by every pipeline that wants to spread work
+ * across cores. The vision thread spends most of its time pinned to one core,
+ * so this gives us somewhere to put the rest of the control hub's cores to work
+ * without every pipeline spinning up (and forgetting to shut down) its own threads.
+ */
+public final class VisionWorkerPool
+{
+    // Leave one core free for the vision thread itself, which joins on our tasks
+    public static int PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    private static ForkJoinPool pool;
+
+    private VisionWorkerPool() {}
+
+    public static synchronized ForkJoinPool get()
+    {
+        if(pool == null)
+        {
+            pool = new ForkJoinPool(PARALLELISM);
+        }
+
+        return pool;
+    }
+}
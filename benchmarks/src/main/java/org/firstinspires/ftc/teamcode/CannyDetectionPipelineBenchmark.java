@@ -0,0 +1,13 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.firstinspires.ftc.teamcode.headless.ConsoleTelemetry;
+import org.openftc.easyopencv.OpenCvPipeline;
+
+public class CannyDetectionPipelineBenchmark extends PipelineBenchmark
+{
+    @Override
+    OpenCvPipeline createPipeline(ConsoleTelemetry telemetry)
+    {
+        return new CannyDetectionPipeline(telemetry);
+    }
+}
@@ -0,0 +1,25 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.firstinspires.ftc.teamcode.headless.ConsoleTelemetry;
+import org.opencv.core.Mat;
+import org.openftc.easyopencv.OpenCvPipeline;
+
+/*
+ * The baseline: only copies each frame into the input buffer, which every
+ * other benchmark does before calling processFrame()
+ */
+public class FrameCopyBenchmark extends PipelineBenchmark
+{
+    @Override
+    OpenCvPipeline createPipeline(ConsoleTelemetry telemetry)
+    {
+        return new OpenCvPipeline()
+        {
+            @Override
+            public Mat processFrame(Mat input)
+            {
+                return input;
+            }
+        };
+    }
+}
@@ -0,0 +1,103 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.firstinspires.ftc.teamcode.headless.ConsoleTelemetry;
+import org.firstinspires.ftc.teamcode.headless.Frames;
+import org.firstinspires.ftc.teamcode.headless.HeadlessRunner;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.openftc.easyopencv.OpenCvPipeline;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The common part of every pipeline benchmark: a fixed corpus of frames at the
+ * resolution being measured, fed to processFrame() one after the other. Each
+ * frame is copied into the input buffer first, since pipelines draw on their
+ * input; FrameCopyBenchmark measures that copy on its own, to subtract it out.
+ *
+ * Throughput mode gives frames per millisecond, and SampleTime mode gives the
+ * latency percentiles. Run with -prof gc for the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class PipelineBenchmark
+{
+    // How many distinct frames to cycle through
+    static final int CORPUS_SIZE = 30;
+    static final long CORPUS_SEED = 0;
+
+    @Param({"320x240", "640x480", "1280x720"})
+    public String resolution;
+
+    List<Mat> frames;
+    Mat input;
+    int nextFrame = 0;
+    OpenCvPipeline pipeline;
+
+    abstract OpenCvPipeline createPipeline(ConsoleTelemetry telemetry);
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        HeadlessRunner.loadOpenCv();
+
+        input = new Mat();
+        Size size = parseSize(resolution);
+        String recorded = System.getProperty("bench.frames");
+
+        frames = recorded != null
+                ? Frames.loadImages(new File(recorded), size)
+                : Frames.synthetic(CORPUS_SIZE, (int) size.width, (int) size.height, CORPUS_SEED);
+
+        pipeline = createPipeline(new ConsoleTelemetry(null));
+
+        // EasyOpenCV calls init() with the first frame before processing anything
+        frames.get(0).copyTo(input);
+        pipeline.init(input);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        Frames.release(frames);
+        input.release();
+    }
+
+    void nextFrame()
+    {
+        frames.get(nextFrame).copyTo(input);
+        nextFrame = (nextFrame + 1) % frames.size();
+    }
+
+    @Benchmark
+    public Mat processFrame()
+    {
+        nextFrame();
+        return pipeline.processFrame(input);
+    }
+
+    static Size parseSize(String size)
+    {
+        String[] parts = size.split("x");
+        return new Size(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    }
+}
@@ -0,0 +1,19 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.firstinspires.ftc.teamcode.headless.ConsoleTelemetry;
+import org.openftc.easyopencv.OpenCvPipeline;
+import org.openjdk.jmh.annotations.Param;
+
+public class SimpleThresholdPipelineBenchmark extends PipelineBenchmark
+{
+    @Param({"RGB", "HSV", "YCrCb", "Lab"})
+    public String colorSpace;
+
+    @Override
+    OpenCvPipeline createPipeline(ConsoleTelemetry telemetry)
+    {
+        SimpleThresholdPipeline pipeline = new SimpleThresholdPipeline(telemetry);
+        pipeline.colorSpace = SimpleThresholdPipeline.ColorSpace.valueOf(colorSpace);
+        return pipeline;
+    }
+}
@@ -0,0 +1,25 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.firstinspires.ftc.teamcode.headless.ConsoleTelemetry;
+import org.openftc.easyopencv.OpenCvPipeline;
+import org.openjdk.jmh.annotations.Param;
+
+public class StageSwitchingPipelineBenchmark extends PipelineBenchmark
+{
+    @Param({"YCbCr_CHAN2", "THRESHOLD", "CONTOURS_OVERLAYED_ON_FRAME", "RAW_IMAGE"})
+    public String stage;
+
+    @Override
+    OpenCvPipeline createPipeline(ConsoleTelemetry telemetry)
+    {
+        StageSwitchingPipeline pipeline = new StageSwitchingPipeline(telemetry);
+
+        // The stage shown is only ever changed by tapping the viewport
+        for(int i = 0; i < StageSwitchingPipeline.Stage.valueOf(stage).ordinal(); i++)
+        {
+            pipeline.onViewportTapped();
+        }
+
+        return pipeline;
+    }
+}
@@ -0,0 +1,18 @@
+package com.qualcomm.robotcore.eventloop.opmode;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/*
+ * Stand-in for the FTC SDK's @Disabled, which the pipelines are annotated with
+ * so EOCV-Sim doesn't list them. It has no effect here.
+ */
+@Documented
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Disabled
+{
+}
@@ -0,0 +1,18 @@
+package org.firstinspires.ftc.robotcore.external;
+
+/*
+ * Stand-in for the FTC SDK's Telemetry, with just the parts the pipelines use
+ */
+public interface Telemetry
+{
+    interface Item
+    {
+        String getCaption();
+    }
+
+    Item addData(String caption, Object value);
+
+    Item addData(String caption, String format, Object... args);
+
+    boolean update();
+}
@@ -0,0 +1,84 @@
+package org.firstinspires.ftc.teamcode.headless;
+
+import org.firstinspires.ftc.robotcore.external.Telemetry;
+
+import java.io.PrintStream;
+
+/*
+ * A Telemetry which collects the lines added since the last update(), and
+ * (optionally) prints them to a stream when update() is called, the way the
+ * Driver Station would show them.
+ */
+public class ConsoleTelemetry implements Telemetry
+{
+    private final PrintStream out;
+    private final StringBuilder pending = new StringBuilder();
+    private volatile String lastUpdate = "";
+    private volatile long updateCount = 0;
+
+    /**
+     * @param out where to print each update, or null to only keep the last one
+     */
+    public ConsoleTelemetry(PrintStream out)
+    {
+        this.out = out;
+    }
+
+    @Override
+    public synchronized Item addData(String caption, Object value)
+    {
+        pending.append(caption).append(" : ").append(value).append('\n');
+        return new ConsoleItem(caption);
+    }
+
+    @Override
+    public synchronized Item addData(String caption, String format, Object... args)
+    {
+        return addData(caption, String.format(format, args));
+    }
+
+    @Override
+    public synchronized boolean update()
+    {
+        lastUpdate = pending.toString();
+        pending.setLength(0);
+        updateCount++;
+
+        if(out != null)
+        {
+            out.print(lastUpdate);
+            out.println("----");
+        }
+
+        return true;
+    }
+
+    /*
+     * What was sent by the most recent update()
+     */
+    public String getLastUpdate()
+    {
+        return lastUpdate;
+    }
+
+    public long getUpdateCount()
+    {
+        return updateCount;
+    }
+
+    private static final class ConsoleItem implements Item
+    {
+        private final String caption;
+
+        ConsoleItem(String caption)
+        {
+            this.caption = caption;
+        }
+
+        @Override
+        public String getCaption()
+        {
+            return caption;
+        }
+    }
+}
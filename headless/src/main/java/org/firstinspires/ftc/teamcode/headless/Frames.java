@@ -0,0 +1,151 @@
+package org.firstinspires.ftc.teamcode.headless;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.RotatedRect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Sources of RGBA frames to feed to pipelines, as the camera would hand them over
+ */
+public final class Frames
+{
+    private static final Scalar FIELD_GRAY = new Scalar(110, 110, 110, 255);
+    private static final Scalar STONE_YELLOW = new Scalar(240, 190, 20, 255);
+    private static final Scalar SKYSTONE_BLACK = new Scalar(25, 25, 25, 255);
+    private static final Scalar PIXEL_PURPLE = new Scalar(150, 60, 200, 255);
+
+    private static final int NOISE_AMPLITUDE = 8;
+    private static final Scalar NOISE_OFFSET = new Scalar(NOISE_AMPLITUDE, NOISE_AMPLITUDE, NOISE_AMPLITUDE, 0);
+
+    private Frames() {}
+
+    /**
+     * Load every image in a directory, in file name order
+     *
+     * @param dir the directory to load .png, .jpg and .jpeg files from
+     * @param size the size to resize each frame to, or null to keep them as they are
+     * @return the frames, as RGBA
+     */
+    public static List<Mat> loadImages(File dir, Size size)
+    {
+        File[] files = dir.listFiles((d, name) -> {
+            String lower = name.toLowerCase();
+            return lower.endsWith(".png") || lower.endsWith(".jpg") || lower.endsWith(".jpeg");
+        });
+
+        if(files == null || files.length == 0)
+        {
+            throw new IllegalArgumentException("No images found in " + dir);
+        }
+
+        Arrays.sort(files);
+        List<Mat> frames = new ArrayList<>();
+
+        for(File file : files)
+        {
+            Mat bgr = Imgcodecs.imread(file.getAbsolutePath());
+
+            if(bgr.empty())
+            {
+                throw new IllegalArgumentException("Couldn't read " + file);
+            }
+
+            Mat rgba = new Mat();
+            Imgproc.cvtColor(bgr, rgba, Imgproc.COLOR_BGR2RGBA);
+            bgr.release();
+
+            if(size != null && (rgba.cols() != (int) size.width || rgba.rows() != (int) size.height))
+            {
+                Imgproc.resize(rgba, rgba, size, 0, 0, Imgproc.INTER_AREA);
+            }
+
+            frames.add(rgba);
+        }
+
+        return frames;
+    }
+
+    /**
+     * Generate frames of a made up scene: a noisy gray field with a few yellow stones,
+     * one black Skystone and a purple pixel, all drifting a little from frame to frame.
+     * The same seed always gives the same frames.
+     *
+     * @param count how many frames to make
+     * @param width the width of each frame
+     * @param height the height of each frame
+     * @param seed the random seed
+     * @return the frames, as RGBA
+     */
+    public static List<Mat> synthetic(int count, int width, int height, long seed)
+    {
+        Random random = new Random(seed);
+        List<Mat> frames = new ArrayList<>();
+
+        // Everything is laid out as a fraction of the frame, so all sizes look alike
+        double scale = width / 320.0;
+        Mat noise = new Mat(height, width, CvType.CV_8UC4);
+
+        for(int i = 0; i < count; i++)
+        {
+            Mat frame = new Mat(height, width, CvType.CV_8UC4, FIELD_GRAY);
+
+            // A row of three stones near the bottom, as in the Skystone pipeline's sample regions
+            for(int s = 0; s < 3; s++)
+            {
+                double cx = (55 + 110 * s + random.nextGaussian() * 2) * scale;
+                double cy = (98 + random.nextGaussian() * 2) * scale;
+                Scalar color = s == 1 ? SKYSTONE_BLACK : STONE_YELLOW;
+                fillRotatedRect(frame, new RotatedRect(new Point(cx, cy), new Size(60 * scale, 30 * scale), 0), color);
+            }
+
+            // A couple of loose stones lying at an angle
+            for(int s = 0; s < 2; s++)
+            {
+                double cx = (80 + 160 * s + random.nextGaussian() * 3) * scale;
+                double cy = (180 + random.nextGaussian() * 3) * scale;
+                double angle = 30 + 60 * s + random.nextGaussian() * 5;
+                fillRotatedRect(frame, new RotatedRect(new Point(cx, cy), new Size(50 * scale, 25 * scale), angle), STONE_YELLOW);
+            }
+
+            Imgproc.circle(frame, new Point((160 + random.nextGaussian() * 3) * scale, 200 * scale), (int) (12 * scale), PIXEL_PURPLE, -1);
+
+            // Sensor noise, so thresholds and contours have something to chew on
+            Core.randu(noise, 0, 2 * NOISE_AMPLITUDE);
+            Core.add(frame, noise, frame);
+            Core.subtract(frame, NOISE_OFFSET, frame);
+
+            frames.add(frame);
+        }
+
+        noise.release();
+        return frames;
+    }
+
+    private static void fillRotatedRect(Mat frame, RotatedRect rect, Scalar color)
+    {
+        Point[] vertices = new Point[4];
+        rect.points(vertices);
+        Imgproc.fillConvexPoly(frame, new MatOfPoint(vertices), color);
+    }
+
+    public static void release(List<Mat> frames)
+    {
+        for(Mat frame : frames)
+        {
+            frame.release();
+        }
+    }
+}
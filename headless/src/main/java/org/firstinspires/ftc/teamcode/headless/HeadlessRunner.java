@@ -0,0 +1,280 @@
+package org.firstinspires.ftc.teamcode.headless;
+
+import org.firstinspires.ftc.robotcore.external.Telemetry;
+import org.firstinspires.ftc.teamcode.StageTimer;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import org.openftc.easyopencv.OpenCvPipeline;
+
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Runs a pipeline on a set of frames, outside of the robot and EOCV-Sim, and
+ * reports how long processFrame() took. The frames are either images from a
+ * directory, or synthetic ones; each is copied into the input buffer before
+ * being processed, since pipelines draw on their input.
+ *
+ * Usage: HeadlessRunner <pipeline class> [options]
+ *   --images <dir>        process the images in a directory, in name order
+ *   --synthetic <WxH>     process synthetic frames of this size (the default, at 320x240)
+ *   --size <WxH>          resize images to this size
+ *   --frames <n>          how many frames to process, cycling through the images (default 100)
+ *   --tap-every <n>       call onViewportTapped() after every n frames
+ *   --out <dir>           write what processFrame() returned for each frame here
+ *   --telemetry           print the pipeline's telemetry as it's sent
+ *   --stage-timing <file> time each stage of the pipeline (see StageTimer), and write the results here
+ */
+public final class HeadlessRunner
+{
+    static final String PIPELINE_PACKAGE = "org.firstinspires.ftc.teamcode";
+
+    private HeadlessRunner() {}
+
+    /*
+     * Load OpenCV's native library, from the copy bundled with the bindings
+     */
+    public static void loadOpenCv()
+    {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    /**
+     * Create a pipeline by name, using its Telemetry constructor if it has one
+     *
+     * @param name the class name, either fully qualified or relative to the teamcode package
+     * @param telemetry the telemetry to hand to the pipeline
+     * @return the new pipeline
+     */
+    public static OpenCvPipeline createPipeline(String name, Telemetry telemetry) throws ReflectiveOperationException
+    {
+        Class<?> clazz = Class.forName(name.contains(".") ? name : PIPELINE_PACKAGE + "." + name);
+
+        if(!OpenCvPipeline.class.isAssignableFrom(clazz))
+        {
+            throw new IllegalArgumentException(name + " is not an OpenCvPipeline");
+        }
+
+        try
+        {
+            Constructor<?> constructor = clazz.getConstructor(Telemetry.class);
+            return (OpenCvPipeline) constructor.newInstance(telemetry);
+        }
+        catch (NoSuchMethodException e)
+        {
+            return (OpenCvPipeline) clazz.getConstructor().newInstance();
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length == 0)
+        {
+            System.err.println("Usage: HeadlessRunner <pipeline class> [--images <dir> | --synthetic <WxH>] [--size <WxH>]"
+                    + " [--frames <n>] [--tap-every <n>] [--out <dir>] [--telemetry] [--stage-timing <file>]");
+            System.exit(1);
+        }
+
+        String pipelineName = args[0];
+        File imageDir = null;
+        Size syntheticSize = new Size(320, 240);
+        Size resize = null;
+        int numFrames = 100;
+        int tapEvery = 0;
+        File outDir = null;
+        boolean printTelemetry = false;
+        File stageTimingFile = null;
+
+        for(int i = 1; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "--images":
+                    imageDir = new File(args[++i]);
+                    break;
+
+                case "--synthetic":
+                    syntheticSize = parseSize(args[++i]);
+                    break;
+
+                case "--size":
+                    resize = parseSize(args[++i]);
+                    break;
+
+                case "--frames":
+                    numFrames = Integer.parseInt(args[++i]);
+                    break;
+
+                case "--tap-every":
+                    tapEvery = Integer.parseInt(args[++i]);
+                    break;
+
+                case "--out":
+                    outDir = new File(args[++i]);
+                    break;
+
+                case "--telemetry":
+                    printTelemetry = true;
+                    break;
+
+                case "--stage-timing":
+                    stageTimingFile = new File(args[++i]);
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        loadOpenCv();
+
+        List<Mat> frames = imageDir != null
+                ? Frames.loadImages(imageDir, resize)
+                : Frames.synthetic(Math.min(numFrames, 30), (int) syntheticSize.width, (int) syntheticSize.height, 0);
+
+        if(outDir != null && !outDir.isDirectory() && !outDir.mkdirs())
+        {
+            throw new IllegalArgumentException("Couldn't create " + outDir);
+        }
+
+        StageTimer.enabled = stageTimingFile != null;
+
+        ConsoleTelemetry telemetry = new ConsoleTelemetry(printTelemetry ? System.out : null);
+        OpenCvPipeline pipeline = createPipeline(pipelineName, telemetry);
+
+        long[] latencies = run(pipeline, frames, numFrames, tapEvery, outDir);
+
+        Arrays.sort(latencies);
+        double total = 0;
+
+        for(long latency : latencies)
+        {
+            total += latency;
+        }
+
+        Mat first = frames.get(0);
+        System.out.println(String.format(Locale.US, "%s: %d frames at %dx%d", pipelineName, numFrames, first.cols(), first.rows()));
+        System.out.println(String.format(Locale.US, "  mean %.3f ms, p50 %.3f ms, p95 %.3f ms, p99 %.3f ms, max %.3f ms",
+                total / latencies.length / 1e6,
+                percentile(latencies, 0.50) / 1e6,
+                percentile(latencies, 0.95) / 1e6,
+                percentile(latencies, 0.99) / 1e6,
+                latencies[latencies.length - 1] / 1e6));
+
+        if(stageTimingFile != null)
+        {
+            StageTimer timer = getStageTimer(pipeline);
+
+            if(timer == null)
+            {
+                System.err.println(pipelineName + " has no stage timer");
+            }
+            else
+            {
+                timer.dumpToFile(stageTimingFile);
+                System.out.println("  stage timings written to " + stageTimingFile);
+            }
+        }
+
+        Frames.release(frames);
+
+        // Pipelines can leave worker threads behind (e.g. the shared VisionWorkerPool)
+        System.exit(0);
+    }
+
+    /**
+     * Run a pipeline over some frames, calling init() with the first one as EasyOpenCV would
+     *
+     * @param pipeline the pipeline to run
+     * @param frames the frames to cycle through
+     * @param numFrames how many frames to process in total
+     * @param tapEvery call onViewportTapped() after every this many frames, or 0 to never
+     * @param outDir where to write each processFrame() result, or null to not
+     * @return how long each processFrame() call took, in nanoseconds
+     */
+    public static long[] run(OpenCvPipeline pipeline, List<Mat> frames, int numFrames, int tapEvery, File outDir)
+    {
+        long[] latencies = new long[numFrames];
+        Mat input = new Mat();
+        Mat bgr = new Mat();
+
+        for(int i = 0; i < numFrames; i++)
+        {
+            frames.get(i % frames.size()).copyTo(input);
+
+            if(i == 0)
+            {
+                pipeline.init(input);
+            }
+
+            long start = System.nanoTime();
+            Mat output = pipeline.processFrame(input);
+            latencies[i] = System.nanoTime() - start;
+
+            if(outDir != null)
+            {
+                if(output.channels() == 4)
+                {
+                    Imgproc.cvtColor(output, bgr, Imgproc.COLOR_RGBA2BGR);
+                }
+                else if(output.channels() == 3)
+                {
+                    Imgproc.cvtColor(output, bgr, Imgproc.COLOR_RGB2BGR);
+                }
+                else
+                {
+                    output.copyTo(bgr);
+                }
+
+                Imgcodecs.imwrite(new File(outDir, String.format(Locale.US, "frame_%05d.png", i)).getAbsolutePath(), bgr);
+            }
+
+            if(tapEvery > 0 && (i + 1) % tapEvery == 0)
+            {
+                pipeline.onViewportTapped();
+            }
+        }
+
+        input.release();
+        bgr.release();
+        return latencies;
+    }
+
+    /*
+     * The pipeline's StageTimer, or null if it doesn't have one
+     */
+    public static StageTimer getStageTimer(OpenCvPipeline pipeline) throws ReflectiveOperationException
+    {
+        try
+        {
+            return (StageTimer) pipeline.getClass().getMethod("getStageTimer").invoke(pipeline);
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+    }
+
+    static double percentile(long[] sorted, double fraction)
+    {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    static Size parseSize(String size)
+    {
+        String[] parts = size.toLowerCase(Locale.US).split("x");
+
+        if(parts.length != 2)
+        {
+            throw new IllegalArgumentException("Expected a size like 640x480, got " + size);
+        }
+
+        return new Size(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    }
+}
@@ -0,0 +1,20 @@
+package org.openftc.easyopencv;
+
+import org.opencv.core.Mat;
+
+/*
+ * Stand-in for EasyOpenCV's OpenCvPipeline. As on the robot, init() is called
+ * with the first frame before it's passed to processFrame(), and frames are RGBA.
+ */
+public abstract class OpenCvPipeline
+{
+    public void init(Mat firstFrame)
+    {
+    }
+
+    public abstract Mat processFrame(Mat input);
+
+    public void onViewportTapped()
+    {
+    }
+}